@@ -1,7 +1,11 @@
 package io.github.felsenhower.stine_calendar_bot.calendars;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
 
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
@@ -9,6 +13,9 @@ import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
  * Wraps an ICS calendar and splits it up into its primary sections (header,
  * body, and footer), or creates the calendar data from those portions.
  * 
+ * The calendar data is kept in a single buffer, and the sections are only
+ * views into it, so splitting up a calendar doesn't copy anything.
+ * 
  * @see Calendar#getHeader()
  * @see Calendar#getBody()
  * @see Calendar#getFooter()
@@ -16,10 +23,16 @@ import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
  */
 public class Calendar {
 
-    private final String header;
-    private final String footer;
-    private final String body;
-    private final String calendarData;
+    private final CharSequence calendarData;
+    private final int headerStart;
+    private final int bodyStart;
+    private final int footerStart;
+    private final int footerEnd;
+
+    /**
+     * The events of the body, or null if they haven't been parsed yet
+     */
+    private volatile List<CalendarEvent> events = null;
 
     /**
      * Creates a new instance of Calendar
@@ -31,10 +44,9 @@ public class Calendar {
      * @throws IllegalArgumentException
      *             if the calendar data is mal-formed.
      */
-    public Calendar(String calendarData, StringProvider strings) throws IllegalArgumentException {
+    public Calendar(CharSequence calendarData, StringProvider strings) throws IllegalArgumentException {
         
         StringProvider messages = strings.from("HumanReadable.Messages");
-        StringProvider regex = strings.from("MachineReadable.Regex");
 
         if (calendarData == null) {
             throw new IllegalArgumentException(messages.get("CalendarDataIsNull"));
@@ -42,52 +54,81 @@ public class Calendar {
         
         this.calendarData = calendarData;
 
-        Matcher calendarDataMatcher = Pattern.compile(regex.get("WellFormedIcsData"), Pattern.DOTALL)
-                .matcher(calendarData);
+        IcsScanner.Sections sections = IcsScanner.scan(calendarData);
         // Check if the calendar data is valid (and throw an Exception
-        // otherwise). Split up the data into the three primary sections
-        if (calendarDataMatcher.matches()) {
-            this.header = calendarDataMatcher.group(1);
-            this.body = calendarDataMatcher.group(2);
-            this.footer = calendarDataMatcher.group(3);
+        // otherwise). Remember where the three primary sections are.
+        if (sections != null) {
+            this.headerStart = sections.getHeaderStart();
+            this.bodyStart = sections.getBodyStart();
+            this.footerStart = sections.getFooterStart();
+            this.footerEnd = sections.getFooterEnd();
         } else {
             throw new IllegalArgumentException(messages.get("CalendarDataIsInvalid"));
         }
     }
     
-    /**
-     * Creates a new instance of Calendar from header, body, and footer.
-     */
-    public Calendar(String header, String body, String footer, StringProvider strings) {
-        this(header + "\n" + body + "\n" + footer, strings);
-    }
-
     /**
      * @return The header of the calendar (everything between BEGIN:VCALENDAR
      *         and END:VTIMEZONE)
      */
-    public String getHeader() {
-        return header;
+    public CharSequence getHeader() {
+        return CharBuffer.wrap(calendarData, headerStart, bodyStart);
     }
 
     /**
      * @return The footer of the calendar (probably just END:VCALENDAR)
      */
-    public String getFooter() {
-        return footer;
+    public CharSequence getFooter() {
+        return CharBuffer.wrap(calendarData, footerStart, footerEnd);
     }
 
     /**
      * @return The body of the calendar (array of VEVENT elements)
      */
-    public String getBody() {
-        return body;
+    public CharSequence getBody() {
+        return CharBuffer.wrap(calendarData, bodyStart, footerStart);
+    }
+
+    /**
+     * Splits the body into its events on first access.
+     * 
+     * @return the events of the calendar, in the order they appear in
+     * @see EventParser
+     */
+    public List<CalendarEvent> getEvents() {
+        List<CalendarEvent> result = events;
+        if (result == null) {
+            result = Collections.unmodifiableList(EventParser.parse(calendarData, bodyStart, footerStart));
+            events = result;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the body to the given Writer, but leaves out the events that
+     * don't pass the filter. Everything else (e.g. line breaks between the
+     * events) is written as it is.
+     * 
+     * @param writer
+     *            the Writer to write to
+     * @param filter
+     *            decides which events are kept
+     */
+    public void writeBody(Writer writer, Predicate<CalendarEvent> filter) throws IOException {
+        int position = bodyStart;
+        for (CalendarEvent event : getEvents()) {
+            if (!filter.test(event)) {
+                writer.append(calendarData, position, event.getStart());
+                position = event.getEnd();
+            }
+        }
+        writer.append(calendarData, position, footerStart);
     }
 
     /**
      * @return the complete calendar data
      */
-    public String getCalendarData() {
+    public CharSequence getCalendarData() {
         return calendarData;
     }
 
@@ -0,0 +1,530 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FilenameUtils;
+
+import io.github.felsenhower.stine_calendar_bot.util.CacheWriter;
+import io.github.felsenhower.stine_calendar_bot.util.CharsetMemory;
+import io.github.felsenhower.stine_calendar_bot.util.Gzip;
+import io.github.felsenhower.stine_calendar_bot.util.Pair;
+import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
+
+/**
+ * Manages the calendar files inside the calendar cache directory. Along with
+ * the files, a manifest with a fingerprint of every calendar is kept, so that
+ * calendars which haven't changed since the last run don't have to be written
+ * again. The {@link CharsetMemory} of the downloaded and imported calendars is
+ * kept inside the cache as well, and so is the {@link ImportManifest}.
+ *
+ * Optionally, the calendars are kept in a single {@link CalendarPack} instead
+ * of one file per month. Month files that are still around from before are
+ * read as well, and replaced by the pack whenever their month is written.
+ * Without that option, an existing pack is unpacked into month files.
+ * The calendars may also be compressed with {@link Gzip}. Compressed and plain
+ * calendars are told apart by their content, so both can be read in any case.
+ *
+ * All calendars are written with a {@link CacheWriter}, and they are synced
+ * to disk and moved into place together when the manifest is saved. Until
+ * then, they are read from their temporary files.
+ *
+ * Months can be evicted according to a {@link RetentionPolicy}. They are
+ * either deleted or moved into the archive directory, whose calendars are
+ * only read when asked for. The sizes of the evicted months are remembered,
+ * so the policy can tell whether they would fit if they were offered again.
+ */
+public class CalendarCache {
+
+    private final Path directory;
+    private final Path manifestFile;
+    private final Path archiveDirectory;
+    private final Path evictedFile;
+    private final Properties fingerprints = new Properties();
+    private final Properties evictedSizes = new Properties();
+    private final CacheWriter writer = new CacheWriter();
+
+    /**
+     * Month files that have been moved into the pack and archived copies that
+     * have been replaced. They are only deleted once their replacement is
+     * reachable and on disk, see {@link CalendarCache#saveManifest()}.
+     */
+    private final Set<Path> obsoleteFiles = new TreeSet<Path>();
+    private final CharsetMemory charsetMemory;
+    private final ImportManifest importManifest;
+    private final CalendarPack pack;
+    private final boolean compressed;
+
+    /**
+     * Creates a new instance of CalendarCache with one file per month and
+     * reads its manifest and charset memory.
+     *
+     * @param strings
+     *            a {@link StringProvider}
+     * @param directory
+     *            the calendar cache directory
+     */
+    public CalendarCache(StringProvider strings, Path directory) throws IOException {
+        this(strings, directory, new ProcessingOptions());
+    }
+
+    /**
+     * Creates a new instance of CalendarCache and reads its manifest and
+     * charset memory. The directory is created if it doesn't exist yet.
+     *
+     * @param strings
+     *            a {@link StringProvider}
+     * @param directory
+     *            the calendar cache directory
+     * @param options
+     *            the {@link ProcessingOptions} that determine the format of
+     *            the cache
+     */
+    public CalendarCache(StringProvider strings, Path directory, ProcessingOptions options) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.manifestFile = directory.resolve(strings.get("MachineReadable.Paths.CacheManifest"));
+        if (Files.isRegularFile(manifestFile)) {
+            try (Reader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+                fingerprints.load(reader);
+            }
+        }
+        final Path charsetMemoryFile = directory.resolve(strings.get("MachineReadable.Paths.CharsetMemory"));
+        final Path importManifestFile = directory.resolve(strings.get("MachineReadable.Paths.ImportManifest"));
+        this.charsetMemory = new CharsetMemory(charsetMemoryFile);
+        this.importManifest = new ImportManifest(importManifestFile);
+        final Path packIndexFile = directory.resolve(strings.get("MachineReadable.Paths.CachePackIndex"));
+        final CalendarPack existingPack = options.isPackedCache() || Files.isRegularFile(packIndexFile)
+                ? new CalendarPack(directory.resolve(strings.get("MachineReadable.Paths.CachePack")), packIndexFile)
+                : null;
+        if (existingPack != null && !options.isPackedCache()) {
+            unpack(existingPack);
+            this.pack = null;
+        } else {
+            this.pack = existingPack;
+        }
+        this.archiveDirectory = directory.resolve(strings.get("MachineReadable.Paths.CacheArchive"));
+        this.evictedFile = directory.resolve(strings.get("MachineReadable.Paths.CacheEvicted"));
+        if (Files.isRegularFile(evictedFile)) {
+            try (Reader reader = Files.newBufferedReader(evictedFile, StandardCharsets.UTF_8)) {
+                evictedSizes.load(reader);
+            }
+        }
+        this.compressed = options.isCompressCache();
+    }
+
+    /**
+     * Writes every calendar of the given pack into its month file, which
+     * replaces an older month file of the same name, just like the pack took
+     * precedence over it. The pack is only deleted once all month files are
+     * on disk, so an interrupted run simply unpacks it again.
+     */
+    private void unpack(CalendarPack existingPack) throws IOException {
+        for (String name : existingPack.getNames()) {
+            final byte[] data = existingPack.read(name);
+            if (data != null) {
+                writer.write(getFile(name), data);
+            }
+        }
+        writer.sync();
+        existingPack.delete();
+    }
+
+    /**
+     * Writes the calendar to the cache, unless the cached file already has the
+     * same fingerprint.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @param calendarData
+     *            the calendar data
+     * @return whether the calendar has changed (and hence been written)
+     */
+    public boolean write(String name, String calendarData) throws IOException {
+        final String fingerprint = fingerprint(calendarData);
+        if (fingerprint.equals(getCachedFingerprint(name))) {
+            return false;
+        }
+        final byte[] data = calendarData.getBytes(StandardCharsets.UTF_8);
+        store(name, compressed ? Gzip.compress(data) : data);
+        fingerprints.setProperty(name, fingerprint);
+        restore(name);
+        return true;
+    }
+
+    /**
+     * Receives the calendar from the given stream and writes it to the cache
+     * while it arrives. The existing file will only be replaced if the
+     * calendar is valid and its fingerprint has changed.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @param stream
+     *            the stream of the calendar data in any encoding
+     * @param receiver
+     *            the {@link IcsStreamReceiver} that decodes and checks the
+     *            data
+     * @return whether the calendar has changed (and hence been written), or
+     *         null if the data was invalid
+     */
+    public Boolean receive(String name, InputStream stream, IcsStreamReceiver receiver) throws IOException {
+        final Path file = getFile(name);
+        final Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        if (!receiver.receive(stream, partFile, compressed)) {
+            return null;
+        }
+        final String fingerprint = receiver.getFingerprint();
+        if (fingerprint.equals(getCachedFingerprint(name))) {
+            Files.delete(partFile);
+            return false;
+        }
+        if (pack != null) {
+            store(name, Files.readAllBytes(partFile));
+            Files.delete(partFile);
+        } else {
+            writer.commit(partFile, file);
+        }
+        fingerprints.setProperty(name, fingerprint);
+        restore(name);
+        return true;
+    }
+
+    /**
+     * Writes the already encoded calendar to the pack or to its file.
+     */
+    private void store(String name, byte[] data) throws IOException {
+        final Path file = getFile(name);
+        if (pack != null) {
+            pack.write(name, data);
+            writer.register(pack.getDataFile());
+            synchronized (this) {
+                obsoleteFiles.add(file);
+            }
+        } else {
+            writer.write(file, data);
+        }
+    }
+
+    /**
+     * Removes the archived copy of the given calendar with the next manifest
+     * and forgets its evicted size, since it has just been written to the
+     * cache again.
+     */
+    private synchronized void restore(String name) {
+        obsoleteFiles.add(getArchivedFile(name));
+        evictedSizes.remove(name);
+    }
+
+    /**
+     * Reads the cached calendar.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the calendar data
+     */
+    public String read(String name) throws IOException {
+        return new String(readBytes(name), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the raw data of the cached calendar and decompresses it if
+     * necessary. The pack takes precedence over a month file of the same name,
+     * and the archive is only read if neither of them contains the calendar.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the raw data
+     */
+    public byte[] readBytes(String name) throws IOException {
+        if (pack != null) {
+            final byte[] data = pack.read(name);
+            if (data != null) {
+                return Gzip.decompress(data);
+            }
+        }
+        return Gzip.decompress(Files.readAllBytes(getReadableFile(name)));
+    }
+
+    /**
+     * Returns the size and modification time of the stored calendar, which
+     * change whenever the calendar is written. For calendars inside the pack,
+     * their offset takes the place of the modification time.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the size and modification time
+     */
+    public Pair<Long, Long> getStoredState(String name) throws IOException {
+        if (pack != null && pack.contains(name)) {
+            return new Pair<Long, Long>(pack.getLength(name), pack.getOffset(name));
+        }
+        final Path file = getReadableFile(name);
+        return new Pair<Long, Long>(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+
+    /**
+     * @return the names of all cached calendars, i.e. of the month files and
+     *         the calendars inside the pack
+     */
+    public Set<String> getNames() throws IOException {
+        final Set<String> names = new TreeSet<String>();
+        // Only calendar files, no leftover .part files or the manifest
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.ics")) {
+            for (Path entry : stream) {
+                names.add(FilenameUtils.removeExtension(entry.getFileName().toString()));
+            }
+        }
+        if (pack != null) {
+            names.addAll(pack.getNames());
+        }
+        return names;
+    }
+
+    /**
+     * @return the names of the calendars inside the archive
+     */
+    public Set<String> getArchivedNames() throws IOException {
+        final Set<String> names = new TreeSet<String>();
+        if (Files.isDirectory(archiveDirectory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(archiveDirectory, "*.ics")) {
+                for (Path entry : stream) {
+                    names.add(FilenameUtils.removeExtension(entry.getFileName().toString()));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the stored size in bytes of every cached calendar by name
+     */
+    public synchronized Map<String, Long> getSizes() throws IOException {
+        final Map<String, Long> sizes = new TreeMap<String, Long>();
+        for (String name : getNames()) {
+            sizes.put(name, getStoredState(name).getKey());
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the size in bytes that every evicted calendar had when it was
+     *         evicted, or the size of its archived copy if it was archived
+     *         before the sizes were remembered
+     */
+    public synchronized Map<String, Long> getEvictedSizes() throws IOException {
+        final Map<String, Long> sizes = new TreeMap<String, Long>();
+        for (String name : getArchivedNames()) {
+            sizes.put(name, Files.size(getArchivedFile(name)));
+        }
+        for (String name : evictedSizes.stringPropertyNames()) {
+            try {
+                sizes.put(name, Long.parseLong(evictedSizes.getProperty(name)));
+            } catch (NumberFormatException e) {
+                // Keep the archived size, if there is one
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Evicts the months that the given policy selects. The decision is based
+     * on the stored sizes only, so no calendar has to be read unless it is
+     * moved from the pack into the archive.
+     *
+     * @param policy
+     *            the {@link RetentionPolicy}
+     * @param refreshWindow
+     *            the {@link RefreshWindow} whose months are protected
+     * @return the names of the evicted months
+     */
+    public synchronized List<String> evict(RetentionPolicy policy, RefreshWindow refreshWindow)
+            throws IOException {
+        if (policy.isUnlimited()) {
+            return Collections.emptyList();
+        }
+        final Map<String, Long> sizes = getSizes();
+        final List<String> names = policy.select(sizes, refreshWindow, YearMonth.now());
+        for (String name : names) {
+            evictedSizes.setProperty(name, sizes.get(name).toString());
+            final Path file = getFile(name);
+            if (policy.isArchive()) {
+                Files.createDirectories(archiveDirectory);
+                final Path archivedFile = getArchivedFile(name);
+                final byte[] data = pack == null ? null : pack.read(name);
+                if (data != null) {
+                    writer.write(archivedFile, data);
+                } else if (Files.isRegularFile(file)) {
+                    writer.commit(file, archivedFile);
+                }
+            }
+            if (pack != null) {
+                pack.remove(name);
+            }
+            fingerprints.remove(name);
+            importManifest.remove(name);
+        }
+        // The archived copies have to be in place before the month files are
+        // deleted.
+        writer.sync();
+        for (String name : names) {
+            Files.deleteIfExists(getFile(name));
+        }
+        return names;
+    }
+
+    /**
+     * Rewrites the pack without the calendar versions that have been replaced
+     * since. Does nothing without a pack.
+     *
+     * @return the number of bytes that have been freed
+     */
+    public long compact() throws IOException {
+        if (pack == null) {
+            return 0;
+        }
+        final long garbage = pack.getGarbage();
+        pack.compact(writer);
+        writer.sync();
+        pack.deleteOldDataFiles();
+        return garbage;
+    }
+
+    /**
+     * Returns the fingerprint of the cached calendar. Files that were written
+     * before the manifest existed will be fingerprinted on demand.
+     *
+     * @return the fingerprint or null if the calendar is not cached
+     */
+    private String getCachedFingerprint(String name) throws IOException {
+        if (!Files.isRegularFile(writer.resolve(getFile(name))) && (pack == null || !pack.contains(name))) {
+            return null;
+        }
+        String fingerprint = fingerprints.getProperty(name);
+        if (fingerprint == null) {
+            fingerprint = fingerprint(read(name));
+            fingerprints.setProperty(name, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Writes the manifest, the charset memory, the import manifest, the sizes
+     * of the evicted months and the index of the pack to disk with a single barrier. The calendars that
+     * have been written since the last time are synced before, so that the
+     * manifests never refer to data that isn't on disk yet. Month files that
+     * have been moved into the pack are only deleted afterwards.
+     */
+    public void saveManifest() throws IOException {
+        writer.sync();
+        charsetMemory.save(writer);
+        importManifest.save(writer);
+        if (pack != null) {
+            pack.save(writer);
+        }
+        final Path partFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".part");
+        try (Writer out = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+            fingerprints.store(out, null);
+        }
+        writer.commit(partFile, manifestFile);
+        saveEvictedSizes();
+        writer.sync();
+        deleteObsoleteFiles();
+    }
+
+    private synchronized void saveEvictedSizes() throws IOException {
+        if (evictedSizes.isEmpty()) {
+            obsoleteFiles.add(evictedFile);
+            return;
+        }
+        final Path partFile = evictedFile.resolveSibling(evictedFile.getFileName() + ".part");
+        try (Writer out = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+            evictedSizes.store(out, null);
+        }
+        writer.commit(partFile, evictedFile);
+    }
+
+    private synchronized void deleteObsoleteFiles() throws IOException {
+        for (Path file : obsoleteFiles) {
+            Files.deleteIfExists(file);
+        }
+        obsoleteFiles.clear();
+    }
+
+    /**
+     * @return the {@link CharsetMemory} of the downloaded and imported
+     *         calendars
+     */
+    public CharsetMemory getCharsetMemory() {
+        return charsetMemory;
+    }
+
+    /**
+     * @return the {@link ImportManifest} of the cached calendars
+     */
+    public ImportManifest getImportManifest() {
+        return importManifest;
+    }
+
+    /**
+     * @return the {@link CacheWriter} that the calendars are written with
+     */
+    public CacheWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return the calendar cache directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the path of the given calendar's file
+     */
+    public Path getFile(String name) {
+        return directory.resolve(name + ".ics");
+    }
+
+    /**
+     * @return the path of the given calendar's file inside the archive
+     */
+    public Path getArchivedFile(String name) {
+        return archiveDirectory.resolve(name + ".ics");
+    }
+
+    /**
+     * @return the path of the given calendar's file, or of its archived file
+     *         if only that one exists. Files that haven't been moved into
+     *         place yet are read from their temporary file.
+     */
+    private Path getReadableFile(String name) {
+        final Path file = writer.resolve(getFile(name));
+        final Path archivedFile = getArchivedFile(name);
+        return !Files.isRegularFile(file) && Files.isRegularFile(archivedFile) ? archivedFile : file;
+    }
+
+    /**
+     * Calculates a fingerprint of the given calendar data.
+     *
+     * @see CalendarFingerprint#of(CharSequence)
+     */
+    public static String fingerprint(CharSequence calendarData) {
+        return CalendarFingerprint.of(calendarData);
+    }
+
+}
@@ -1,33 +1,99 @@
 package io.github.felsenhower.stine_calendar_bot.calendars;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.text.StringEscapeUtils;
 
 import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
-import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlOption;
 import com.gargoylesoftware.htmlunit.html.HtmlPasswordInput;
 import com.gargoylesoftware.htmlunit.html.HtmlSelect;
 import com.gargoylesoftware.htmlunit.html.HtmlTextInput;
+import com.gargoylesoftware.htmlunit.html.SubmittableElement;
+import com.gargoylesoftware.htmlunit.util.Cookie;
 
 import io.github.felsenhower.stine_calendar_bot.util.Browser;
-import io.github.felsenhower.stine_calendar_bot.util.CharsetDetector;
+import io.github.felsenhower.stine_calendar_bot.util.CharsetMemory;
+import io.github.felsenhower.stine_calendar_bot.util.FixtureStore;
+import io.github.felsenhower.stine_calendar_bot.util.Pair;
+import io.github.felsenhower.stine_calendar_bot.util.SessionStore;
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
 /**
  * This class extends {@link CalendarDataSupplier} and supplies the HashMap of
  * calendar data Strings that it downloads from the STiNE website.
+ *
+ * The export happens right in the constructor. Afterwards, the logged-in
+ * Browser is still open and has to be closed with
+ * {@link CalendarDataDownloader#close()}.
  */
-public class CalendarDataDownloader extends CalendarDataSupplier {
+public class CalendarDataDownloader extends CalendarDataSupplier implements AutoCloseable {
+
+    private static final long BASE_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+    /**
+     * The name under which the charset of the STiNE export is remembered.
+     */
+    private static final String CHARSET_SOURCE = "export";
 
     private final Browser browser;
 
+    private final StringProvider strings;
+    private final StringProvider messages;
+    private final StringProvider xpath;
+
+    private final String startpage;
+
+    private final CalendarCache cache;
+    private final boolean streamDownloads;
+
+    private final Pattern downloadAnchorPattern;
+    private final Pattern monthSelectPattern;
+
+    /**
+     * The template for exporting months with plain HTTP requests, or null if
+     * all months shall be exported by browsing.
+     */
+    private ExportRequestTemplate exportRequestTemplate = null;
+
+    private final Set<String> failedCalendars = ConcurrentHashMap.newKeySet();
+    private final Set<String> retriedCalendars = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The months that have been streamed directly into the cache, mapped to
+     * whether they have changed.
+     */
+    private final Map<String, Boolean> streamedCalendars = new ConcurrentHashMap<String, Boolean>();
+
     /**
      * Creates a new instance of CalendarDataDownloader
      *
@@ -37,20 +103,164 @@ public class CalendarDataDownloader extends CalendarDataSupplier {
      *            the username for STiNE
      * @param password
      *            the password for STiNE
+     * @param cache
+     *            the {@link CalendarCache} which streamed downloads are
+     *            written to. The stored session will be kept next to it.
      * @param echoPages
      *            whether the pages shall be echo'ed during browsing.
+     * @param options
+     *            the {@link ProcessingOptions}, e.g. the number of parallel
+     *            export sessions or whether the direct export shall be used
+     * @param cachedNames
+     *            the names of the calendars that are already cached. Those
+     *            outside of the refresh window won't be exported again.
+     * @param cachedSizes
+     *            the stored sizes of the cached calendars by name. Months that
+     *            the retention policy would evict right away won't be
+     *            exported at all.
+     * @param evictedSizes
+     *            the sizes of the evicted calendars by name, which the
+     *            retention policy assumes for them if they are offered again
      * @throws IOException
      *             can only be thrown during browsing to the download page. Once
      *             we are there, every Exception will be ignored.
      */
-    public CalendarDataDownloader(StringProvider strings, String username, String password, boolean echoPages)
-            throws IOException {
+    public CalendarDataDownloader(StringProvider strings, String username, String password, CalendarCache cache,
+            boolean echoPages, ProcessingOptions options, Set<String> cachedNames,
+            Map<String, Long> cachedSizes, Map<String, Long> evictedSizes) throws IOException {
+
+        this.strings = strings;
+        this.messages = strings.from("HumanReadable.Messages");
+        this.xpath = strings.from("MachineReadable.XPath");
+        this.cache = cache;
+        this.streamDownloads = options.isStreamDownloads();
+        this.downloadAnchorPattern = Pattern.compile(strings.get("MachineReadable.Regex.DownloadAnchorHref"),
+                Pattern.CASE_INSENSITIVE);
+        this.monthSelectPattern = Pattern.compile(strings.get("MachineReadable.Regex.MonthSelect"),
+                Pattern.CASE_INSENSITIVE);
+
+        // A different start page (e.g. a ReplayServer) is the only domain
+        // scripts may be loaded from.
+        this.startpage = options.getStartpage() == null ? strings.get("MachineReadable.Web.Startpage")
+                : options.getStartpage();
+        final String allowedDomain = options.getStartpage() == null
+                ? strings.get("MachineReadable.Web.LeanAllowedDomain")
+                : new URL(startpage).getHost();
+        final FixtureStore fixtureStore = options.getRecordDirectory() == null ? null
+                : new FixtureStore(options.getRecordDirectory(), Collections.singleton(password));
+        browser = new Browser(echoPages, options.isLean(), strings, allowedDomain, fixtureStore);
+        if (options.getTimeout() > 0) {
+            browser.setTimeout(options.getTimeout());
+        }
+
+        try {
+            export(username, password, options, cachedNames, cachedSizes, evictedSizes);
+        } catch (IOException | RuntimeException e) {
+            browser.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Logs in (or restores the last session) and exports all months that
+     * aren't served from the cache.
+     *
+     * @see CalendarDataDownloader#CalendarDataDownloader(StringProvider,
+     *      String, String, CalendarCache, boolean, ProcessingOptions, Set, Map, Map)
+     */
+    private void export(String username, String password, ProcessingOptions options, Set<String> cachedNames,
+            Map<String, Long> cachedSizes, Map<String, Long> evictedSizes) throws IOException {
+
+        // Try to continue the session of the last run first, and only log in
+        // if that doesn't work out.
+        final Path calendarCache = cache.getDirectory();
+        final SessionStore sessionStore = options.isKeepSession()
+                ? new SessionStore(
+                        calendarCache.resolveSibling(
+                                calendarCache.getFileName() + strings.get("MachineReadable.Paths.SessionFileSuffix")),
+                        username, password)
+                : null;
+
+        if (sessionStore == null || !restoreSession(sessionStore)) {
+            login(username, password);
+            if (sessionStore != null) {
+                try {
+                    sessionStore.save(browser.getCookies(), browser.getPage().getBaseURL());
+                } catch (IOException e) {
+                    System.err.println(messages.get("SessionNotSaved"));
+                }
+            }
+        }
+
+        // Get the drop-down box for months and acquire all possible values
+        HtmlSelect select = (HtmlSelect) browser.getFirstByXPath(xpath.get("MonthSelect"));
+
+        // Get the Select's list of options.
+        @SuppressWarnings("unchecked")
+        final List<HtmlOption> selectOptions = (List<HtmlOption>) Browser.getByXPath(xpath.get("MonthSelectOptions"),
+                select);
 
-        StringProvider messages = strings.from("HumanReadable.Messages");
-        StringProvider xpath = strings.from("MachineReadable.XPath");
+        // This acquires the options' inner HTML (or text attribute) which will
+        // be in the format like Y2017M01 for January 2017. Take a look in
+        // src/main/resources/felsenhower/stine_calendar_bot/XPath.properties
+        // for more information. We use this as a identifier and filename for
+        // the calendars as they are quite easy to read and automatically sort.
+        final List<String> offeredNames = selectOptions.stream().map(option -> option.getValueAttribute())
+                .collect(Collectors.toList());
 
+        // Months that are already cached and lie outside the refresh window
+        // will be served from the cache, so we won't export them again.
+        final RefreshWindow refreshWindow = options.getRefreshWindow();
+        final YearMonth now = YearMonth.now();
+
+        // Months that the retention policy would evict right after the
+        // download won't be exported either. Months that have been evicted
+        // before are assumed to have kept their size. The size of the others
+        // is unknown yet, so they only count towards the number of months.
+        final RetentionPolicy retentionPolicy = options.getRetentionPolicy();
+        final Set<String> rejectedNames = new HashSet<String>();
+        if (!retentionPolicy.isUnlimited()) {
+            final Map<String, Long> sizes = new TreeMap<String, Long>(cachedSizes);
+            offeredNames.forEach(name -> sizes.putIfAbsent(name, evictedSizes.getOrDefault(name, 0L)));
+            rejectedNames.addAll(retentionPolicy.select(sizes, refreshWindow, now));
+        }
+        final List<String> names = offeredNames.stream()
+                .filter(name -> !cachedNames.contains(name) || refreshWindow.contains(name, now))
+                .filter(name -> !rejectedNames.contains(name))
+                .collect(Collectors.toList());
+        if (names.size() < offeredNames.size()) {
+            System.err.println(messages.get("SkippingCachedCalendars", offeredNames.size() - names.size()));
+        }
+
+        // Before each new download, we will have to go to the download page
+        // first.
+        final URL downloadPageURL = browser.getPage().getBaseURL();
+
+        // Capture the export form once, so the months can be requested
+        // directly afterwards, without building any pages.
+        if (options.isDirectExport()) {
+            try {
+                this.exportRequestTemplate = new ExportRequestTemplate(browser.getPage(), select,
+                        (SubmittableElement) browser.getFirstByXPath(xpath.get("ExportButton")));
+            } catch (Exception e) {
+                System.err.println(messages.get("DirectExportUnavailable"));
+            }
+        }
+
+        exportCalendars(names, downloadPageURL, options);
+    }
+
+    /**
+     * Logs into STiNE and browses to the calendar export page.
+     *
+     * @param username
+     *            the username for STiNE
+     * @param password
+     *            the password for STiNE
+     */
+    private void login(String username, String password) throws IOException {
         System.err.println(messages.get("LoadingMainPage"));
-        browser = new Browser(strings.get("MachineReadable.Web.Startpage"), echoPages);
+        browser.gotoURL(startpage);
 
         // Redirect to the start page
         final DomElement redirectHeader = browser.getFirstByXPath(xpath.get("RedirectHdr"));
@@ -80,85 +290,352 @@ public class CalendarDataDownloader extends CalendarDataSupplier {
         System.err.println(messages.get("PreparingDownload"));
         browser.clickOnElementByXPath(xpath.get("SchedulerAnchor"));
         browser.clickOnElementByXPath(xpath.get("SchedulerExportAnchor"));
+    }
 
-        // Get the drop-down box for months and acquire all possible values
-        HtmlSelect select = (HtmlSelect) browser.getFirstByXPath(xpath.get("MonthSelect"));
+    /**
+     * Restores the stored session of a previous run and browses directly to
+     * the calendar export page.
+     *
+     * @param sessionStore
+     *            the {@link SessionStore} to load the session from
+     * @return true if the Browser is on the export page now, or false if there
+     *         is no stored session or it has expired. In the latter case, the
+     *         Browser's cookies will be cleared.
+     */
+    private boolean restoreSession(SessionStore sessionStore) {
+        final Pair<URL, List<Cookie>> session = sessionStore.load();
+        if (session == null) {
+            return false;
+        }
+        System.err.println(messages.get("RestoringSession"));
+        try {
+            browser.addCookies(session.getValue());
+            browser.gotoURL(session.getKey());
+            // Expired sessions will end up on some other page. Checking for
+            // the localised export button also makes sure that the session
+            // uses the right language.
+            if (browser.getFirstByXPath(xpath.get("MonthSelect")) != null
+                    && browser.getFirstByXPath(xpath.get("ExportButton")) != null) {
+                return true;
+            }
+        } catch (Exception e) {
+            // fall through
+        }
+        System.err.println(messages.get("SessionExpired"));
+        browser.clearCookies();
+        return false;
+    }
 
-        // Get the Select's list of options.
-        @SuppressWarnings("unchecked")
-        final List<HtmlOption> options = (List<HtmlOption>) Browser.getByXPath(xpath.get("MonthSelectOptions"), select);
+    /**
+     * Exports all the given months, spread over the given number of Browser
+     * sessions. All sessions but the first one are clones of the logged-in
+     * Browser and will be closed afterwards. Failed exports are retried with
+     * an exponential, jittered backoff. Once finished, the observed speedup
+     * will be reported.
+     *
+     * @param names
+     *            the names of the months to export
+     * @param downloadPageURL
+     *            the URL of the calendar export page
+     * @param options
+     *            the {@link ProcessingOptions} with the maximum number of
+     *            parallel sessions and retries
+     */
+    private void exportCalendars(List<String> names, URL downloadPageURL, ProcessingOptions options) {
+        final int sessionCount = Math.max(1, Math.min(options.getSessions(), names.size()));
+        final int retries = options.getRetries();
 
-        URL downloadPageURL = null;
+        // Every worker takes an idle Browser from this queue and puts it back
+        // when it's done, so no Browser is ever used by two threads at once.
+        final BlockingQueue<Browser> idleBrowsers = new LinkedBlockingQueue<Browser>();
+        final List<Browser> clones = new LinkedList<Browser>();
+        idleBrowsers.add(browser);
+        for (int i = 1; i < sessionCount; i++) {
+            Browser clone = new Browser(browser);
+            clones.add(clone);
+            idleBrowsers.add(clone);
+        }
 
-        for (HtmlOption option : options) {
-            try {
+        final AtomicLong exportNanos = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(sessionCount);
+        final long startTime = System.nanoTime();
 
-                // This acquires the option's inner HTML (or text attribute)
-                // which will be in the format like Y2017M01 for January 2017.
-                // Take a look in
-                // src/main/resources/felsenhower/stine_calendar_bot/XPath.properties
-                // for more information. We use this as a identifier and
-                // filename for the calendars as they are quite easy to read and
-                // automatically sort.
-                String name = option.getValueAttribute();
-
-                // Before each new download, we will have to go to the download
-                // page first.
-                if (downloadPageURL == null) {
-                    downloadPageURL = browser.getPage().getBaseURL();
-                } else {
-                    browser.gotoURL(downloadPageURL);
+        for (String name : names) {
+            executor.submit(() -> {
+                final Browser session = idleBrowsers.take();
+                final long monthStartTime = System.nanoTime();
+                try {
+                    for (int attempt = 0;; attempt++) {
+                        boolean success;
+                        try {
+                            success = exportCalendar(session, downloadPageURL, name);
+                        } catch (Exception e) {
+                            success = false;
+                        }
+                        if (success) {
+                            if (attempt > 0) {
+                                retriedCalendars.add(name);
+                            }
+                            break;
+                        }
+                        if (attempt >= retries) {
+                            failedCalendars.add(name);
+                            break;
+                        }
+                        final long delay = getRetryDelay(attempt);
+                        System.err.println(messages.get("RetryingExport", name, delay, attempt + 1, retries));
+                        Thread.sleep(delay);
+                    }
+                } finally {
+                    exportNanos.addAndGet(System.nanoTime() - monthStartTime);
+                    idleBrowsers.put(session);
                 }
+                return null;
+            });
+        }
 
-                // The select is somewhat bound to the Page instance which we
-                // will have discarded before. So we need to re-acquire it for
-                // the current page. This time, we select the current option as
-                // well. This conveniently works by the option's name
-                System.err.println(messages.get("Exporting", name));
-                select = (HtmlSelect) browser.getFirstByXPath(xpath.get("MonthSelect"));
-                select.setSelectedAttribute(name, true);
-
-                // Click the export button and finally get the anchor for
-                // downloading the calendar. That anchor may be null if the
-                // selected calendar month is empty or the anchor is otherwise
-                // absent.
-                browser.clickOnElementByXPath(xpath.get("ExportButton"));
-                HtmlAnchor downloadLink = (HtmlAnchor) browser.getFirstByXPath(xpath.get("DownloadAnchor"));
-
-                if (downloadLink != null) {
-                    System.err.println(messages.get("Downloading"));
-                    Page response = downloadLink.click();
-                    // First, get the file as a Stream and directly convert that
-                    // to byte[]
-                    byte[] calendarDataAsBytes = IOUtils.toByteArray(response.getWebResponse().getContentAsStream());
-
-                    // Then, use the CharsetDetector to find out the encoding.
-                    // This is a brute-force approach which is testing all
-                    // available charsets until the two given Strings are
-                    // contained in the result. This is needed because all
-                    // common charset guessers have failed so far on these ICS
-                    // files, but at least we know how the file should look
-                    // like. Because STiNE is usually using UTF16-LE, we are
-                    // checking that first which will make the brute-force
-                    // rather be a magic guess-right-on-first-try.
-                    String calendarData = new CharsetDetector("UTF-16LE").getStringFromBytes(calendarDataAsBytes,
-                            "BEGIN:VCALENDAR", "END:VCALENDAR");
-
-                    // Check if the calendarData is well-formed.
-                    if (Pattern.compile(strings.get("MachineReadable.Regex.WellFormedIcsData"), Pattern.DOTALL)
-                            .matcher(calendarData).matches()) {
-                        // Put the calendarData into result HashMap, with the
-                        // name as the key.
-                        this.calendarPool.put(name, calendarData);
-                    } else {
-                        System.err.println(messages.get("CalendarIsInvalid"));
-                    }
-                } else {
-                    System.err.println(messages.get("CalendarIsEmpty"));
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        final long wallNanos = System.nanoTime() - startTime;
+
+        // Sum up the traffic of all sessions (only available for lean ones)
+        final long[] traffic = new long[3];
+        idleBrowsers.forEach(session -> {
+            long[] sessionTraffic = session.getTrafficStatistics();
+            for (int i = 0; sessionTraffic != null && i < traffic.length; i++) {
+                traffic[i] += sessionTraffic[i];
+            }
+        });
+        if (browser.getTrafficStatistics() != null) {
+            System.err.println(messages.get("TrafficStatistics", traffic[0], traffic[1], traffic[2]));
+        }
+
+        clones.forEach(clone -> clone.close());
+
+        // The speedup is the ratio between the time that all exports would
+        // have taken one after another and the time they actually took.
+        // Streamed months don't end up in the calendarPool.
+        System.err.println(messages.get("ExportStatistics", calendarPool.size() + streamedCalendars.size(),
+                names.size(), sessionCount, wallNanos / 1e9, exportNanos.get() / 1e9,
+                wallNanos > 0 ? (double) exportNanos.get() / wallNanos : 1.0));
+    }
+
+    /**
+     * Calculates the delay before the next attempt of an export. The delay
+     * doubles with every attempt and is randomised by +-50%, so that parallel
+     * sessions don't retry in lockstep.
+     *
+     * @param attempt
+     *            the number of the failed attempt, starting at 0
+     * @return the delay in milliseconds
+     */
+    private static long getRetryDelay(int attempt) {
+        final long delay = Math.min(MAX_RETRY_DELAY_MILLIS, BASE_RETRY_DELAY_MILLIS << Math.min(attempt, 16));
+        return (long) (delay * ThreadLocalRandom.current().nextDouble(0.5, 1.5));
+    }
+
+    /**
+     * Exports a single month with the given Browser and puts the result into
+     * the calendarPool. If a direct export is possible, that one is tried
+     * first and browsing is only used as fallback.
+     *
+     * @param session
+     *            the Browser to use. It must not be used by any other thread
+     *            at the same time.
+     * @param downloadPageURL
+     *            the URL of the calendar export page
+     * @param name
+     *            the name of the month, e.g. Y2017M01
+     * @return true if the month has been exported or is empty, false if the
+     *         export delivered invalid data.
+     */
+    private boolean exportCalendar(Browser session, URL downloadPageURL, String name) throws IOException {
+        System.err.println(messages.get("Exporting", name));
+
+        if (exportRequestTemplate != null) {
+            try {
+                if (exportCalendarDirectly(session, name)) {
+                    return true;
                 }
             } catch (Exception e) {
-                // ignore
+                // fall back to browsing
+            }
+            System.err.println(messages.get("DirectExportFailed", name));
+        }
+
+        session.gotoURL(downloadPageURL);
+
+        // The select is somewhat bound to the Page instance which we will have
+        // discarded before. So we need to re-acquire it for the current page.
+        // This time, we select the current option as well. This conveniently
+        // works by the option's name
+        HtmlSelect select = (HtmlSelect) session.getFirstByXPath(xpath.get("MonthSelect"));
+        select.setSelectedAttribute(name, true);
+
+        // Click the export button and finally get the anchor for downloading
+        // the calendar. That anchor may be null if the selected calendar month
+        // is empty or the anchor is otherwise absent.
+        session.clickOnElementByXPath(xpath.get("ExportButton"));
+        HtmlAnchor downloadLink = (HtmlAnchor) session.getFirstByXPath(xpath.get("DownloadAnchor"));
+
+        if (downloadLink != null) {
+            System.err.println(messages.get("Downloading"));
+            Page response = downloadLink.click();
+            return receiveCalendarData(name, response.getWebResponse());
+        } else {
+            System.err.println(messages.get("CalendarIsEmpty"));
+            return true;
+        }
+    }
+
+    /**
+     * Exports a single month with plain HTTP requests: The export form is sent
+     * with the month's value, the download link is picked from the raw
+     * response, and the calendar file is fetched from there. No pages are
+     * built on the way.
+     *
+     * @param session
+     *            the Browser whose session shall be used
+     * @param name
+     *            the name of the month, e.g. Y2017M01
+     * @return true if valid calendar data has been put into the calendarPool
+     *         or the month is empty, false if the direct export didn't work
+     *         out.
+     */
+    private boolean exportCalendarDirectly(Browser session, String name) throws IOException {
+        WebResponse exportResponse = session.loadWebResponse(exportRequestTemplate.createRequest(name));
+        final URL downloadURL;
+        try {
+            String content = exportResponse.getContentAsString();
+            Matcher downloadAnchorMatcher = downloadAnchorPattern.matcher(content);
+            if (!downloadAnchorMatcher.find()) {
+                // Empty months are answered with the export page without a
+                // download link. Anything else (e.g. an error page) is a
+                // failure.
+                if (exportResponse.getStatusCode() == 200 && monthSelectPattern.matcher(content).find()) {
+                    System.err.println(messages.get("CalendarIsEmpty"));
+                    return true;
+                }
+                return false;
+            }
+            downloadURL = new URL(exportResponse.getWebRequest().getUrl(),
+                    StringEscapeUtils.unescapeHtml4(downloadAnchorMatcher.group(1)));
+        } finally {
+            exportResponse.cleanUp();
+        }
+
+        System.err.println(messages.get("Downloading"));
+        return receiveCalendarData(name, session.loadWebResponse(downloadURL));
+    }
+
+    /**
+     * Receives the downloaded calendar. When streaming, the calendar is
+     * decoded, checked and written to the cache while it is read. Otherwise,
+     * it is read completely and put into the calendarPool.
+     *
+     * @param name
+     *            the name of the month, e.g. Y2017M01
+     * @param response
+     *            the response that contains the calendar file
+     * @return whether the calendar data was valid
+     */
+    private boolean receiveCalendarData(String name, WebResponse response) throws IOException {
+        try (InputStream stream = response.getContentAsStream()) {
+            if (!streamDownloads) {
+                // Get the file as a Stream and directly convert that to byte[]
+                return putCalendarData(name, IOUtils.toByteArray(stream));
+            }
+            // STiNE is usually using UTF16-LE, so we are checking that first,
+            // unless another charset has worked the last time.
+            final CharsetMemory charsetMemory = cache.getCharsetMemory();
+            final IcsStreamReceiver receiver = new IcsStreamReceiver(
+                    charsetMemory.createDetector(CHARSET_SOURCE, StandardCharsets.UTF_16LE));
+            Boolean changed = cache.receive(name, stream, receiver);
+            charsetMemory.put(CHARSET_SOURCE, receiver.getCharset());
+            if (changed == null) {
+                System.err.println(messages.get("CalendarIsInvalid", name));
+                return false;
             }
+            streamedCalendars.put(name, changed);
+            return true;
+        } finally {
+            response.cleanUp();
         }
     }
+
+    /**
+     * Decodes the downloaded calendar data and puts it into the calendarPool
+     * if it is well-formed.
+     *
+     * @param name
+     *            the name of the month, e.g. Y2017M01
+     * @param calendarDataAsBytes
+     *            the raw calendar file
+     * @return whether the calendar data was valid
+     */
+    private boolean putCalendarData(String name, byte[] calendarDataAsBytes) {
+        // Use the CharsetDetector to find out the encoding. This is a
+        // brute-force approach which is testing all available charsets until
+        // the two given Strings are contained in the result. This is needed
+        // because all common charset guessers have failed so far on these ICS
+        // files, but at least we know how the file should look like. Because
+        // STiNE is usually using UTF16-LE, we are checking that first which
+        // will make the brute-force rather be a magic guess-right-on-first-try.
+        // If another charset has worked the last time, that one comes first.
+        final CharsetMemory charsetMemory = cache.getCharsetMemory();
+        final Pair<Charset, String> detected = charsetMemory
+                .createDetector(CHARSET_SOURCE, StandardCharsets.UTF_16LE)
+                .testCharsets(calendarDataAsBytes, "BEGIN:VCALENDAR", "END:VCALENDAR");
+        charsetMemory.put(CHARSET_SOURCE, detected.getKey());
+        String calendarData = detected.getValue();
+
+        // Check if the calendarData is well-formed.
+        if (IcsScanner.isWellFormed(calendarData)) {
+            // Put the calendarData into result Map, with the name as the key.
+            this.calendarPool.put(name, calendarData);
+            return true;
+        } else {
+            System.err.println(messages.get("CalendarIsInvalid", name));
+            return false;
+        }
+    }
+
+    /**
+     * Closes the logged-in Browser.
+     */
+    @Override
+    public void close() {
+        browser.close();
+    }
+
+    /**
+     * @return the names of the months whose export failed, even after all
+     *         retries
+     */
+    public Set<String> getFailedCalendars() {
+        return failedCalendars;
+    }
+
+    /**
+     * @return the names of the months that have been streamed directly into
+     *         the cache instead of being put into the calendarPool, mapped to
+     *         whether they have changed.
+     */
+    public Map<String, Boolean> getStreamedCalendars() {
+        return streamedCalendars;
+    }
+
+    /**
+     * @return the names of the months that were exported successfully, but
+     *         only after one or more retries
+     */
+    public Set<String> getRetriedCalendars() {
+        return retriedCalendars;
+    }
 }
@@ -1,52 +1,195 @@
 package io.github.felsenhower.stine_calendar_bot.calendars;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.regex.Pattern;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 
+import io.github.felsenhower.stine_calendar_bot.util.CharsetMemory;
+import io.github.felsenhower.stine_calendar_bot.util.Pair;
+import io.github.felsenhower.stine_calendar_bot.util.Parallel;
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
 /**
  * This class extends {@link CalendarDataSupplier} and supplies the HashMap of
- * calendar data Strings that it imports from the calendar cache on the hard
- * disk.
+ * calendar data Strings that it imports from the {@link CalendarCache} on the
+ * hard disk.
+ *
+ * Calendars are only read when they are needed, see
+ * {@link CalendarDataImporter#load(String)}. Whether a calendar is
+ * well-formed is taken from the {@link ImportManifest} as long as it hasn't
+ * changed since it was checked, so only new and changed calendars are read
+ * right away.
+ *
+ * Archived calendars are only imported if the filter has a date window that
+ * reaches their month.
  */
 public class CalendarDataImporter extends CalendarDataSupplier {
 
+    private final StringProvider messages;
+    private final CalendarCache cache;
+    private final ImportManifest manifest;
+    private final Set<String> names = new TreeSet<String>();
+    private final Set<String> skippedCalendars = new TreeSet<String>();
+
     /**
-     * Creates a new instance of CalendarDataDownloader
+     * Creates a new instance of CalendarDataImporter
      * 
      * @param strings
      *            a {@link StringProvider}
+     * @param cache
+     *            the {@link CalendarCache}
+     * @param filter
+     *            the {@link EventFilter}. Months outside of its window are
+     *            skipped without being read, and archived months are only
+     *            read if they are inside of it.
+     * @param pool
+     *            the pool that the new and changed calendars are checked on
      * @throws IOException
      *             when anything unexpected happens during the file operations
      */
-    public CalendarDataImporter(StringProvider strings, Path calendarCache) throws IOException {
-
-        StringProvider messages = strings.from("HumanReadable.Messages");
-        File calendarCacheFile = calendarCache.toFile();
-
-        if (calendarCacheFile.exists()) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(calendarCache)) {
-                for (Path entry : stream) {
-                    String name = FilenameUtils.removeExtension(entry.getFileName().toString());
-                    System.err.println(messages.get("LoadingLocalFile", name));
-                    String calendarData = new String(Files.readAllBytes(entry));
-                    if (Pattern.compile(strings.get("MachineReadable.Regex.WellFormedIcsData"), Pattern.DOTALL)
-                            .matcher(calendarData).matches()) {
-                        this.calendarPool.put(name, calendarData);
-                    } else {
-                        System.err.println(messages.get("CalendarIsInvalid", name));
-                    }
+    public CalendarDataImporter(StringProvider strings, CalendarCache cache, EventFilter filter, ForkJoinPool pool)
+            throws IOException {
+        this.messages = strings.from("HumanReadable.Messages");
+        this.cache = cache;
+        this.manifest = cache.getImportManifest();
+
+        final List<String> candidates = new ArrayList<String>();
+        for (String name : cache.getNames()) {
+            if (filter.containsMonth(name)) {
+                candidates.add(name);
+            } else {
+                skippedCalendars.add(name);
+            }
+        }
+        if (filter.hasDateWindow()) {
+            for (String name : cache.getArchivedNames()) {
+                if (filter.containsMonth(name) && !candidates.contains(name)) {
+                    candidates.add(name);
                 }
             }
-        } else {
-            calendarCacheFile.mkdirs();
         }
+
+        final List<Boolean> valid = Parallel.map(pool, candidates, name -> {
+            final Pair<Long, Long> state = cache.getStoredState(name);
+            final ImportManifest.Record record = manifest.get(name);
+            if (record != null && record.matches(state.getKey(), state.getValue())) {
+                return record.isValid();
+            }
+            return read(name, state) != null;
+        });
+        for (int i = 0; i < candidates.size(); i++) {
+            if (valid.get(i)) {
+                names.add(candidates.get(i));
+            } else {
+                System.err.println(messages.get("CalendarIsInvalid", candidates.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Reads, decodes and checks the given calendar, and updates its record in
+     * the manifest. Calendars that are well-formed are put into the pool.
+     *
+     * @return the calendar data, or null if it is mal-formed
+     */
+    private String read(String name, Pair<Long, Long> state) throws IOException {
+        System.err.println(messages.get("LoadingLocalFile", name));
+        final byte[] data = cache.readBytes(name);
+        // The files are written in UTF-8, but they may also have been put
+        // there by hand.
+        final CharsetMemory charsetMemory = cache.getCharsetMemory();
+        final String fileName = cache.getFile(name).getFileName().toString();
+        final Pair<Charset, String> detected = charsetMemory.createDetector(fileName, StandardCharsets.UTF_8)
+                .testCharsets(data, "BEGIN:VCALENDAR", "END:VCALENDAR");
+        charsetMemory.put(fileName, detected.getKey());
+        final String calendarData = detected.getValue();
+        final boolean valid = IcsScanner.isWellFormed(calendarData);
+        manifest.put(name,
+                new ImportManifest.Record(state.getKey(), state.getValue(), hash(data), valid, detected.getKey()));
+        if (!valid) {
+            return null;
+        }
+        calendarPool.put(name, calendarData);
+        return calendarData;
+    }
+
+    /**
+     * Returns the given calendar, and reads it first if that hasn't happened
+     * yet. Calendars that are known to be well-formed are simply decoded with
+     * their known charset, unless their content doesn't match the manifest
+     * anymore.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the calendar data, or null if it is not cached or mal-formed
+     */
+    public String load(String name) throws IOException {
+        if (!names.contains(name)) {
+            return null;
+        }
+        final String cached = calendarPool.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        final ImportManifest.Record record = manifest.get(name);
+        if (record != null && record.getCharset() != null) {
+            final byte[] data = cache.readBytes(name);
+            if (hash(data).equals(record.getHash())) {
+                System.err.println(messages.get("LoadingLocalFile", name));
+                final String calendarData = new String(data, record.getCharset());
+                calendarPool.put(name, calendarData);
+                return calendarData;
+            }
+        }
+        // The calendar has changed since it was checked
+        final String calendarData = read(name, cache.getStoredState(name));
+        if (calendarData == null) {
+            System.err.println(messages.get("CalendarIsInvalid", name));
+        }
+        return calendarData;
+    }
+
+    /**
+     * Reads all calendars that haven't been read yet.
+     */
+    @Override
+    public Map<String, String> getCalendarPool() {
+        try {
+            for (String name : names) {
+                load(name);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return calendarPool;
+    }
+
+    /**
+     * @return the names of all well-formed cached calendars inside the
+     *         filter's window, whether they have been read or not
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return the names of the cached calendars that were skipped because
+     *         they lie outside of the filter's window
+     */
+    public Set<String> getSkippedCalendars() {
+        return skippedCalendars;
+    }
+
+    private static String hash(byte[] data) {
+        return DigestUtils.sha256Hex(data);
     }
 }
@@ -0,0 +1,288 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.nio.CharBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A single VEVENT of a calendar. The event only knows where it is located in
+ * the calendar data, so nothing is copied until its properties are accessed
+ * for the first time. Then, its (unfolded) lines are parsed once and the
+ * values are kept.
+ *
+ * @see EventParser
+ */
+public class CalendarEvent {
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+
+    /**
+     * The property values by upper-case name, or null if they haven't been
+     * parsed yet
+     */
+    private volatile Map<String, String> properties = null;
+
+    /**
+     * Creates a new CalendarEvent
+     *
+     * @param source
+     *            the calendar data that contains the event
+     * @param start
+     *            the index of BEGIN:VEVENT
+     * @param end
+     *            the index right after the line break of END:VEVENT
+     */
+    CalendarEvent(CharSequence source, int start, int end) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the index of BEGIN:VEVENT in the source
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * @return the index right after the line break of END:VEVENT in the source
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the raw text of the event, from BEGIN:VEVENT to the line break
+     *         after END:VEVENT
+     */
+    public CharSequence getText() {
+        return CharBuffer.wrap(source, start, end);
+    }
+
+    /**
+     * Returns the raw value of the first property with the given name, i.e.
+     * everything after the colon without the parameters.
+     *
+     * @param name
+     *            the name of the property, e.g. DTSTART
+     * @return the value, or null if the event doesn't have the property
+     */
+    public String getProperty(String name) {
+        return getProperties().get(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the UID of the event, or null
+     */
+    public String getUid() {
+        return getProperty("UID");
+    }
+
+    /**
+     * @return the RECURRENCE-ID of the event (i.e. which occurrence of a
+     *         series it replaces), or null
+     */
+    public String getRecurrenceId() {
+        return getProperty("RECURRENCE-ID");
+    }
+
+    /**
+     * @return the DTSTAMP of the event, or null
+     */
+    public String getDtStamp() {
+        return getProperty("DTSTAMP");
+    }
+
+    /**
+     * @return the raw DTSTART of the event, e.g. 20170412T081500, or null
+     */
+    public String getDtStart() {
+        return getProperty("DTSTART");
+    }
+
+    /**
+     * @return the raw DTEND of the event, or null
+     */
+    public String getDtEnd() {
+        return getProperty("DTEND");
+    }
+
+    /**
+     * Returns the start of the event. The time zone is ignored, so all times
+     * are meant in the zone the calendar was exported in.
+     *
+     * @return the start, or null if DTSTART can't be read. Dates start at
+     *         midnight.
+     */
+    public LocalDateTime getStartTime() {
+        return parseDateTime(getDtStart());
+    }
+
+    /**
+     * Returns the (exclusive) end of the event. Without a DTEND, events that
+     * are given as a date last for that day, and all others end when they
+     * start.
+     *
+     * @return the end, or null if it can't be read
+     */
+    public LocalDateTime getEndTime() {
+        final LocalDateTime end = parseDateTime(getDtEnd());
+        if (end != null) {
+            return end;
+        }
+        final String start = getDtStart();
+        final LocalDateTime startTime = parseDateTime(start);
+        if (startTime != null && start.indexOf('T') < 0) {
+            return startTime.plusDays(1);
+        }
+        return startTime;
+    }
+
+    /**
+     * @return the unescaped SUMMARY of the event, or null
+     */
+    public String getSummary() {
+        return unescapeText(getProperty("SUMMARY"));
+    }
+
+    /**
+     * @return the unescaped LOCATION of the event, or null
+     */
+    public String getLocation() {
+        return unescapeText(getProperty("LOCATION"));
+    }
+
+    /**
+     * Parses the properties on first access.
+     */
+    private Map<String, String> getProperties() {
+        Map<String, String> result = properties;
+        if (result == null) {
+            result = Collections.unmodifiableMap(parseProperties());
+            properties = result;
+        }
+        return result;
+    }
+
+    /**
+     * Unfolds the lines of the event and splits them into names and values.
+     * Properties of nested components (e.g. VALARM) are skipped.
+     */
+    private Map<String, String> parseProperties() {
+        final Map<String, String> result = new HashMap<String, String>();
+        final StringBuilder line = new StringBuilder();
+        int depth = 0;
+        int i = start;
+        while (i < end) {
+            // Collect one logical line. Continuation lines start with a space
+            // or a tab, which is removed along with the line break.
+            line.setLength(0);
+            while (i < end) {
+                final char c = source.charAt(i++);
+                if (c == '\n') {
+                    if (i < end && (source.charAt(i) == ' ' || source.charAt(i) == '\t')) {
+                        i++;
+                        continue;
+                    }
+                    break;
+                }
+                if (c != '\r') {
+                    line.append(c);
+                }
+            }
+
+            final String text = line.toString();
+            if (text.startsWith("BEGIN:")) {
+                depth++;
+                continue;
+            }
+            if (text.startsWith("END:")) {
+                depth--;
+                continue;
+            }
+            if (depth != 1) {
+                continue;
+            }
+            final int colon = findValueSeparator(text);
+            if (colon < 0) {
+                continue;
+            }
+            final int semicolon = text.indexOf(';');
+            final String name = text.substring(0, semicolon >= 0 && semicolon < colon ? semicolon : colon)
+                    .toUpperCase(Locale.ROOT);
+            result.putIfAbsent(name, text.substring(colon + 1));
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the colon that separates name and parameters from
+     *         the value. Colons inside quoted parameter values are skipped.
+     */
+    private static int findValueSeparator(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ':' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a DATE or DATE-TIME value, e.g. 20170412 or 20170412T081500Z.
+     *
+     * @return the time, or null if it can't be read
+     */
+    private static LocalDateTime parseDateTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            if (value.length() >= 15 && value.charAt(8) == 'T') {
+                return LocalDateTime.parse(value.substring(0, 15), DATE_TIME);
+            }
+            if (value.length() >= 8) {
+                return LocalDate.parse(value.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE).atStartOfDay();
+            }
+        } catch (DateTimeParseException e) {
+            // Fall through
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the escape sequences of TEXT values (\n, \, \; and \\).
+     */
+    private static String unescapeText(String value) {
+        if (value == null || value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                result.append(next == 'n' || next == 'N' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+}
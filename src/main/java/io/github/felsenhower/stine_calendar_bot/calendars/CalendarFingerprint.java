@@ -0,0 +1,99 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Calculates a fingerprint of calendar data that only changes if the
+ * calendar's content changes. Folded lines are unfolded, line endings are
+ * normalised and volatile properties like DTSTAMP are ignored. The data can be
+ * fed line by line, so the fingerprint can be calculated while the calendar is
+ * being received.
+ */
+public class CalendarFingerprint {
+
+    /**
+     * Lines of these properties change with every export, even though the
+     * calendar itself stays the same. They are ignored for the fingerprint.
+     */
+    private static final Pattern VOLATILE_PROPERTY = Pattern.compile("^(DTSTAMP)[;:].*", Pattern.DOTALL);
+
+    private final MessageDigest digest;
+
+    /**
+     * The current unfolded line, which may still be continued by the next
+     * line.
+     */
+    private final StringBuilder pendingLine = new StringBuilder();
+    private boolean hasPendingLine = false;
+
+    /**
+     * Creates a new instance of CalendarFingerprint
+     */
+    public CalendarFingerprint() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the next line of the calendar data.
+     *
+     * @param line
+     *            the line without its line break
+     */
+    public void update(CharSequence line) {
+        if (hasPendingLine && line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+            // Folded line, so this continues the pending line
+            pendingLine.append(line, 1, line.length());
+        } else {
+            flush();
+            pendingLine.append(line);
+            hasPendingLine = true;
+        }
+    }
+
+    private void flush() {
+        if (hasPendingLine && !VOLATILE_PROPERTY.matcher(pendingLine).matches()) {
+            digest.update(pendingLine.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        pendingLine.setLength(0);
+        hasPendingLine = false;
+    }
+
+    /**
+     * Completes the calculation. The instance must not be used afterwards.
+     *
+     * @return the fingerprint as hex String
+     */
+    public String finish() {
+        flush();
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Calculates the fingerprint of the given calendar data.
+     *
+     * @param calendarData
+     *            the calendar data
+     * @return the fingerprint as hex String
+     */
+    public static String of(CharSequence calendarData) {
+        CalendarFingerprint fingerprint = new CalendarFingerprint();
+        String[] lines = calendarData.toString().split("\\r?\\n", -1);
+        // A trailing line break doesn't start another line
+        int lineCount = lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+        for (int i = 0; i < lineCount; i++) {
+            fingerprint.update(lines[i]);
+        }
+        return fingerprint.finish();
+    }
+
+}
@@ -0,0 +1,371 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.codec.binary.Hex;
+
+import io.github.felsenhower.stine_calendar_bot.util.CacheWriter;
+
+/**
+ * Keeps all calendars of the cache in a single append-only data file instead
+ * of one file per month. An index file maps every calendar name to the offset,
+ * length and SHA-256 hash of its latest version inside the data file.
+ *
+ * New versions are appended and the old ones are left behind as garbage until
+ * {@link CalendarPack#compact(CacheWriter)} is called. Reads go through a
+ * memory mapping of the data file. The index is only written by
+ * {@link CalendarPack#save(CacheWriter)}, so data that was appended before a
+ * crash is simply ignored on the next run.
+ *
+ * Every compaction writes a new generation of the data file, and the index
+ * names the generation it belongs to. Replacing the index is hence the only
+ * step that switches over to the compacted data, and the data file of the
+ * previous generation is only deleted afterwards.
+ */
+public class CalendarPack {
+
+    /**
+     * The index key of the data file's generation. It can't be mistaken for
+     * a calendar name.
+     */
+    private static final String GENERATION_KEY = "generation";
+
+    private final Path baseFile;
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private int generation = 0;
+    private Path dataFile;
+    private MappedByteBuffer mapping = null;
+
+    /**
+     * Creates a new CalendarPack and reads its index if it exists. Entries
+     * that point beyond the end of the data file are dropped.
+     *
+     * @param dataFile
+     *            the data file of the first generation. Later generations get
+     *            their number appended to its name.
+     * @param indexFile
+     *            the index file
+     */
+    public CalendarPack(Path dataFile, Path indexFile) throws IOException {
+        this.baseFile = dataFile;
+        this.indexFile = indexFile;
+        this.dataFile = dataFile;
+        if (Files.isRegularFile(indexFile)) {
+            final Properties index = new Properties();
+            try (Reader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                index.load(reader);
+            }
+            try {
+                this.generation = Integer.parseInt(index.getProperty(GENERATION_KEY, "0"));
+            } catch (NumberFormatException e) {
+                // A damaged index: None of its entries can be trusted.
+                return;
+            }
+            this.dataFile = getDataFile(generation);
+            final long size = Files.isRegularFile(this.dataFile) ? Files.size(this.dataFile) : 0;
+            for (String name : index.stringPropertyNames()) {
+                if (name.equals(GENERATION_KEY)) {
+                    continue;
+                }
+                final Entry entry = Entry.parse(index.getProperty(name));
+                if (entry != null && entry.offset + entry.length <= size) {
+                    entries.put(name, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the data file of the current generation
+     */
+    public synchronized Path getDataFile() {
+        return dataFile;
+    }
+
+    private Path getDataFile(int generation) {
+        return generation == 0 ? baseFile : baseFile.resolveSibling(baseFile.getFileName() + "." + generation);
+    }
+
+    /**
+     * @return the index file
+     */
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @return whether the pack contains the given calendar
+     */
+    public synchronized boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return the length of the given calendar's data, or -1 if the pack
+     *         doesn't contain it
+     */
+    public synchronized long getLength(String name) {
+        final Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.length;
+    }
+
+    /**
+     * @return the offset of the given calendar's data inside the data file,
+     *         or -1 if the pack doesn't contain it. Every new version of the
+     *         calendar gets a new offset.
+     */
+    public synchronized long getOffset(String name) {
+        final Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.offset;
+    }
+
+    /**
+     * @return the names of all calendars in the pack
+     */
+    public synchronized Set<String> getNames() {
+        return new TreeSet<String>(entries.keySet());
+    }
+
+    /**
+     * Reads the given calendar.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the raw data, or null if the pack doesn't contain the calendar
+     *         or its data doesn't match the hash anymore
+     */
+    public synchronized byte[] read(String name) throws IOException {
+        final Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        final long end = entry.offset + entry.length;
+        if (mapping == null || mapping.capacity() < end) {
+            try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        final ByteBuffer slice = mapping.duplicate();
+        slice.position((int) entry.offset).limit((int) end);
+        final byte[] data = new byte[entry.length];
+        slice.get(data);
+        return hash(data).equals(entry.hash) ? data : null;
+    }
+
+    /**
+     * Appends a new version of the given calendar. It will only be found by
+     * the next run after {@link CalendarPack#save(CacheWriter)} has been
+     * called.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @param data
+     *            the raw data
+     */
+    public synchronized void write(String name, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            final long offset = channel.size();
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            entries.put(name, new Entry(offset, data.length, hash(data)));
+        }
+    }
+
+    /**
+     * Removes the given calendar from the index. Its data is left behind as
+     * garbage until the next {@link CalendarPack#compact(CacheWriter)}.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     */
+    public synchronized void remove(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * @return the number of bytes in the data file that don't belong to the
+     *         latest version of any calendar
+     */
+    public synchronized long getGarbage() throws IOException {
+        long live = 0;
+        for (Entry entry : entries.values()) {
+            live += entry.length;
+        }
+        return (Files.isRegularFile(dataFile) ? Files.size(dataFile) : 0) - live;
+    }
+
+    /**
+     * Writes the index to a temporary file, which replaces the index with the
+     * next barrier of the given {@link CacheWriter}.
+     *
+     * @param writer
+     *            the {@link CacheWriter}
+     */
+    public synchronized void save(CacheWriter writer) throws IOException {
+        final Properties index = new Properties();
+        index.setProperty(GENERATION_KEY, Integer.toString(generation));
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            index.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        final Path partFile = indexFile.resolveSibling(indexFile.getFileName() + ".part");
+        try (Writer out = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+            index.store(out, null);
+        }
+        writer.commit(partFile, indexFile);
+    }
+
+    /**
+     * Writes the latest version of every calendar into the data file of the
+     * next generation and saves the index. Calendars that don't match their
+     * hash anymore are dropped. The new index replaces the old one with the
+     * next barrier of the given {@link CacheWriter}, after which
+     * {@link CalendarPack#deleteOldDataFiles()} can remove the old data file.
+     *
+     * @param writer
+     *            the {@link CacheWriter}
+     */
+    public synchronized void compact(CacheWriter writer) throws IOException {
+        final Map<String, byte[]> live = new TreeMap<String, byte[]>();
+        for (String name : entries.keySet()) {
+            final byte[] data = read(name);
+            if (data != null) {
+                live.put(name, data);
+            }
+        }
+        mapping = null;
+        entries.clear();
+
+        // A leftover of a compaction that crashed before its index was
+        // replaced is simply overwritten.
+        generation++;
+        dataFile = getDataFile(generation);
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, byte[]> calendar : live.entrySet()) {
+                final byte[] data = calendar.getValue();
+                final long offset = channel.position();
+                final ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                entries.put(calendar.getKey(), new Entry(offset, data.length, hash(data)));
+            }
+        }
+        writer.register(dataFile);
+        save(writer);
+    }
+
+    /**
+     * Deletes the data files of all other generations, i.e. the ones that
+     * have been replaced by a compaction and the ones of compactions that
+     * didn't finish. Must only be called once the index is on disk.
+     */
+    public synchronized void deleteOldDataFiles() throws IOException {
+        for (Path file : getDataFiles()) {
+            if (!file.getFileName().equals(dataFile.getFileName())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the whole pack, i.e. the index and then the data files of all
+     * generations. The pack must not be used afterwards.
+     */
+    public synchronized void delete() throws IOException {
+        Files.deleteIfExists(indexFile);
+        for (Path file : getDataFiles()) {
+            Files.delete(file);
+        }
+        entries.clear();
+        mapping = null;
+    }
+
+    /**
+     * @return the data files of all generations that exist on disk
+     */
+    private List<Path> getDataFiles() throws IOException {
+        final String baseName = baseFile.getFileName().toString();
+        final List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseFile.toAbsolutePath().getParent(),
+                baseName + "*")) {
+            for (Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.equals(baseName) || name.substring(baseName.length()).matches("\\.\\d+")) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The location and hash of a calendar inside the data file.
+     */
+    private static class Entry {
+        private final long offset;
+        private final int length;
+        private final String hash;
+
+        private Entry(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * Parses an index value in the format offset,length,hash.
+         *
+         * @return the entry, or null if the value is mal-formed
+         */
+        private static Entry parse(String value) {
+            final String[] fields = value.split(",");
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), fields[2]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return offset + "," + length + "," + hash;
+        }
+    }
+
+}
@@ -1,13 +1,25 @@
 package io.github.felsenhower.stine_calendar_bot.calendars;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
 
-import io.github.felsenhower.stine_calendar_bot.main.Main;
+import io.github.felsenhower.stine_calendar_bot.util.CacheWriter;
+import io.github.felsenhower.stine_calendar_bot.util.Pair;
+import io.github.felsenhower.stine_calendar_bot.util.Parallel;
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
 /**
@@ -16,7 +28,27 @@ import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
  */
 public class CalendarProcessor {
 
-    private final String calendarData;
+    private final LinkedList<Calendar> calendars = new LinkedList<Calendar>();
+
+    /**
+     * The same calendars by name, e.g. Y2017M01
+     */
+    private final Map<String, Calendar> calendarsByName = new TreeMap<String, Calendar>();
+
+    /**
+     * The calendars that have just been downloaded, as opposed to the ones
+     * from the cache
+     */
+    private final Set<Calendar> freshCalendars = new HashSet<Calendar>();
+
+    /**
+     * The copy of every event that will be kept, indexed by UID and
+     * RECURRENCE-ID, together with whether it has just been downloaded
+     */
+    private final Map<String, Pair<CalendarEvent, Boolean>> eventIndex =
+            new HashMap<String, Pair<CalendarEvent, Boolean>>();
+
+    private final EventFilter filter;
 
     /**
      * Creates a new instance and hence starts the processing.
@@ -31,59 +63,358 @@ public class CalendarProcessor {
      *            the directory to cache the calendars in
      * @param echoPages
      *            whether the page contents shall be echo'ed during browsing
+     * @param options
+     *            the {@link ProcessingOptions}
      */
     public CalendarProcessor(StringProvider strings, String username, String password, Path calendarCache,
-            boolean echoPages) throws IOException {
-
-        // Get all the downloaded calendars
-        HashMap<String, String> downloadedCalendars = (new CalendarDataDownloader(strings, username, password,
-                echoPages)).getCalendarPool();
-
-        // Get all the calendars from hard drive
-        HashMap<String, String> importedCalendars = (new CalendarDataImporter(strings, calendarCache))
-                .getCalendarPool();
-
-        // Get the union of all keys (calendar names)
-        TreeSet<String> keys = new TreeSet<String>(downloadedCalendars.keySet());
-        keys.addAll(importedCalendars.keySet());
-
-        LinkedList<Calendar> calendars = new LinkedList<Calendar>();
-
-        for (String key : keys) {
-            if (downloadedCalendars.containsKey(key)) {
-                // If we have just downloaded the calendar, we will always save
-                // it and by means replace the existing file. There is no easy
-                // way to check if the existing file is equivalent to the new
-                // one because of timestamps.
-                String downloadedCalendarData = downloadedCalendars.get(key);
-                calendars.add(new Calendar(downloadedCalendarData, strings));
-                System.err.println(strings.get("HumanReadable.Messages.WritingFile", key));
-                Main.writeCalendarFile(key, calendarCache, downloadedCalendarData);
+            boolean echoPages, ProcessingOptions options) throws IOException {
+
+        this.filter = options.getEventFilter();
+        CalendarCache cache = new CalendarCache(strings, calendarCache, options);
+        ForkJoinPool pool = new ForkJoinPool(options.getParallelism());
+        try {
+
+            // Enforce the retention policy before anything is read, so the
+            // evicted months are neither imported nor downloaded again.
+            RetentionPolicy retentionPolicy = options.getRetentionPolicy();
+            List<String> evictedCalendars = cache.evict(retentionPolicy, options.getRefreshWindow());
+            if (!evictedCalendars.isEmpty()) {
+                System.err.println(strings.get(
+                        retentionPolicy.isArchive() ? "HumanReadable.Messages.ArchivedCalendars"
+                                : "HumanReadable.Messages.EvictedCalendars",
+                        evictedCalendars.size(), String.join(", ", evictedCalendars)));
+            }
+
+            // Find all the calendars on hard drive. They are only read if
+            // they are actually used. Months outside of the filter's window
+            // are skipped, but still count as cached.
+            CalendarDataImporter importer = new CalendarDataImporter(strings, cache, filter, pool);
+            Set<String> cachedNames = new TreeSet<String>(importer.getNames());
+            cachedNames.addAll(importer.getSkippedCalendars());
+
+            // Get all the downloaded calendars. The cached ones are passed
+            // along, so they don't have to be downloaded again if they're not
+            // in the refresh window.
+            // The logged-in Browser is closed as soon as the export is done.
+            final Map<String, String> downloadedCalendars;
+            final Map<String, Boolean> streamedCalendars;
+            try (CalendarDataDownloader downloader = new CalendarDataDownloader(strings, username, password, cache,
+                    echoPages, options, cachedNames, cache.getSizes(), cache.getEvictedSizes())) {
+                downloadedCalendars = downloader.getCalendarPool();
+                streamedCalendars = downloader.getStreamedCalendars();
+                reportFailures(strings, downloader, cachedNames);
+            }
+
+            // Get the union of all keys (calendar names)
+            TreeSet<String> keys = new TreeSet<String>(downloadedCalendars.keySet());
+            keys.addAll(streamedCalendars.keySet());
+            keys.addAll(importer.getNames());
+
+            // The months are written, read and parsed in parallel, but the
+            // results are collected in the order of the keys.
+            List<Month> months = Parallel.map(pool, keys,
+                    key -> processMonth(key, strings, cache, importer, downloadedCalendars, streamedCalendars));
+
+            List<String> changedCalendars = new LinkedList<String>();
+            Set<String> filteredCalendars = new TreeSet<String>(importer.getSkippedCalendars());
+            for (Month month : months) {
+                if (month.calendar != null) {
+                    calendars.add(month.calendar);
+                    calendarsByName.put(month.name, month.calendar);
+                    if (month.changed != null) {
+                        freshCalendars.add(month.calendar);
+                    }
+                } else if (!month.merged) {
+                    filteredCalendars.add(month.name);
+                }
+                if (month.changed != null) {
+                    if (month.changed) {
+                        System.err.println(strings.get("HumanReadable.Messages.WritingFile", month.name));
+                        changedCalendars.add(month.name);
+                    } else {
+                        System.err.println(strings.get("HumanReadable.Messages.CalendarUnchanged", month.name));
+                    }
+                }
+            }
+
+            cache.saveManifest();
+            if (options.isPackedCache() && options.isCompactCache()) {
+                final long freed = cache.compact();
+                System.err.println(strings.get("HumanReadable.Messages.CompactedCache", freed / 1024));
+            }
+            CacheWriter writer = cache.getWriter();
+            if (writer.getWrittenFiles() > 0) {
+                System.err.println(strings.get("HumanReadable.Messages.CacheWriteLatency", writer.getWrittenFiles(),
+                        writer.getWriteMillis(), writer.getAverageWriteMillis(),
+                        writer.getSyncMillis()));
+            }
+            if (changedCalendars.isEmpty()) {
+                System.err.println(strings.get("HumanReadable.Messages.NoChangedCalendars"));
             } else {
-                // If the calendar is only available from disk, we will take
-                // that one as well.
-                String importedCalendarData = importedCalendars.get(key);
-                calendars.add(new Calendar(importedCalendarData, strings));
+                System.err.println(strings.get("HumanReadable.Messages.ChangedCalendars",
+                        String.join(", ", changedCalendars)));
+            }
+
+            if (!filteredCalendars.isEmpty()) {
+                System.err.println(strings.get("HumanReadable.Messages.FilteredCalendars", filteredCalendars.size()));
             }
+        } finally {
+            pool.shutdown();
         }
 
+        // Months may overlap, so the same event can show up several times.
+        final int duplicates = indexEvents();
+        if (duplicates > 0) {
+            System.err.println(strings.get("HumanReadable.Messages.DuplicateEvents", duplicates));
+        }
+        if (options.isReportConflicts()) {
+            reportConflicts(strings);
+        }
+
+        // The caller decides what to do without calendars. A batch run must
+        // not be ended because a single account doesn't have any.
         if (calendars.size() == 0) {
-          System.err.println(strings.get("HumanReadable.Messages.NoCalendars"));
-          System.exit(0);
+            System.err.println(strings.get("HumanReadable.Messages.NoCalendars"));
+        }
+    }
+
+    /**
+     * Brings a single month into the cache and parses it if it will be
+     * merged. This runs in parallel for all months.
+     */
+    private Month processMonth(String key, StringProvider strings, CalendarCache cache,
+            CalendarDataImporter importer, Map<String, String> downloadedCalendars,
+            Map<String, Boolean> streamedCalendars) throws IOException {
+        // Fresh months are cached in any case, but only the months inside the
+        // filter's window are merged.
+        final Month month = new Month(key, filter.containsMonth(key));
+        String calendarData = null;
+        if (downloadedCalendars.containsKey(key)) {
+            // If we have just downloaded the calendar, we will save it and by
+            // means replace the existing file, unless the fingerprint tells us
+            // that nothing but the timestamps have changed.
+            calendarData = downloadedCalendars.get(key);
+            month.changed = cache.write(key, calendarData);
+        } else if (streamedCalendars.containsKey(key)) {
+            // Streamed calendars have already been written to the cache while
+            // they were downloaded, so we'll take them from there.
+            month.changed = streamedCalendars.get(key);
+            if (month.merged) {
+                calendarData = cache.read(key);
+            }
+        } else {
+            // If the calendar is only available from disk, we will take that
+            // one as well, unless it has turned out to be invalid.
+            calendarData = importer.load(key);
+        }
+        if (month.merged && calendarData != null) {
+            month.calendar = new Calendar(calendarData, strings);
+            // Parse the events and their properties right here, so the
+            // de-duplication afterwards only has to look them up.
+            month.calendar.getEvents().forEach(CalendarEvent::getUid);
+        }
+        return month;
+    }
+
+    /**
+     * The outcome of {@link CalendarProcessor#processMonth}.
+     */
+    private static class Month {
+        private final String name;
+        private final boolean merged;
+
+        /**
+         * Whether the month has changed, or null if it hasn't been downloaded
+         */
+        private Boolean changed = null;
+
+        /**
+         * The parsed calendar, or null if it won't be merged
+         */
+        private Calendar calendar = null;
+
+        private Month(String name, boolean merged) {
+            this.name = name;
+            this.merged = merged;
         }
+    }
 
-        // Finally, steal a header and footer from any calendar (They are very
-        // similar if not identical) and merge all the appointments in between.
-        this.calendarData = new Calendar(calendars.getLast().getHeader(),
-                calendars.stream().map(calendar -> calendar.getBody()).collect(Collectors.joining("\n")),
-                calendars.getLast().getFooter(), strings).getCalendarData();
+    /**
+     * Indexes the events of all calendars by UID and RECURRENCE-ID and picks
+     * the freshest copy of every event: Downloaded events win over cached
+     * ones, and then the latest DTSTAMP wins. Events without a UID are always
+     * kept.
+     *
+     * @return the number of duplicates that will be left out
+     */
+    private int indexEvents() {
+        int duplicates = 0;
+        for (Calendar calendar : calendars) {
+            final boolean fresh = freshCalendars.contains(calendar);
+            for (CalendarEvent event : calendar.getEvents()) {
+                final String key = getEventKey(event);
+                if (key == null) {
+                    continue;
+                }
+                final Pair<CalendarEvent, Boolean> indexed = eventIndex.get(key);
+                if (indexed != null) {
+                    duplicates++;
+                    if (!isFresher(event, fresh, indexed.getKey(), indexed.getValue())) {
+                        continue;
+                    }
+                }
+                eventIndex.put(key, new Pair<CalendarEvent, Boolean>(event, fresh));
+            }
+        }
+        return duplicates;
     }
 
     /**
-     * @return the merged calendar data
+     * @return the key of the event in the index, or null if it doesn't have a
+     *         UID
+     */
+    private static String getEventKey(CalendarEvent event) {
+        final String uid = event.getUid();
+        if (uid == null) {
+            return null;
+        }
+        final String recurrenceId = event.getRecurrenceId();
+        return recurrenceId == null ? uid : uid + "\0" + recurrenceId;
+    }
+
+    /**
+     * @return whether the candidate is fresher than the indexed copy of the
+     *         same event
+     */
+    private static boolean isFresher(CalendarEvent candidate, boolean candidateFresh, CalendarEvent indexed,
+            boolean indexedFresh) {
+        if (candidateFresh != indexedFresh) {
+            return candidateFresh;
+        }
+        final String candidateStamp = candidate.getDtStamp();
+        final String indexedStamp = indexed.getDtStamp();
+        // DTSTAMPs are UTC date-times, so they sort chronologically.
+        return candidateStamp != null && (indexedStamp == null || candidateStamp.compareTo(indexedStamp) > 0);
+    }
+
+    /**
+     * @return whether the event is the copy that is kept in the merged
+     *         calendar
+     */
+    private boolean isKept(CalendarEvent event) {
+        final String key = getEventKey(event);
+        return key == null || eventIndex.get(key).getKey() == event;
+    }
+
+    /**
+     * Writes the merged calendar to the given Writer, without building it in
+     * memory first: A header and footer are stolen from any calendar (They
+     * are very similar if not identical) and all the appointments are written
+     * in between. Duplicate events and events that don't pass the
+     * {@link EventFilter} are left out.
+     *
+     * @param writer
+     *            the Writer to write to. It will neither be flushed nor
+     *            closed.
+     */
+    public void writeCalendarData(Writer writer) throws IOException {
+        final Calendar last = calendars.getLast();
+        writer.append(last.getHeader()).append('\n');
+        boolean first = true;
+        for (Calendar calendar : calendars) {
+            if (!first) {
+                writer.append('\n');
+            }
+            calendar.writeBody(writer, event -> isKept(event) && filter.test(event));
+            first = false;
+        }
+        writer.append('\n').append(last.getFooter());
+    }
+
+    /**
+     * Creates an {@link EventIndex} over the events of the merged calendar,
+     * i.e. without duplicates and filtered events. Its partitions are built
+     * on demand, one month at a time.
+     *
+     * @return the index
+     */
+    public EventIndex getEventIndex() {
+        return new EventIndex(calendarsByName, event -> isKept(event) && filter.test(event));
+    }
+
+    /**
+     * Prints every pair of merged events that overlap, e.g. two courses at
+     * the same time, using the {@link EventIndex}.
+     */
+    private void reportConflicts(StringProvider strings) {
+        final EventIndex index = getEventIndex();
+        final List<CalendarEvent> events = index.getEvents(LocalDateTime.MIN, LocalDateTime.MAX);
+        final Map<CalendarEvent, Integer> positions = new IdentityHashMap<CalendarEvent, Integer>();
+        for (CalendarEvent event : events) {
+            positions.put(event, positions.size());
+        }
+        int conflicts = 0;
+        for (CalendarEvent event : events) {
+            for (CalendarEvent other : index.getOverlapping(event)) {
+                // Every pair is reported once, by its earlier event.
+                if (positions.get(other) > positions.get(event)) {
+                    System.err.println(strings.get("HumanReadable.Messages.Conflict", event.getSummary(),
+                            event.getStartTime(), other.getSummary(), other.getStartTime()));
+                    conflicts++;
+                }
+            }
+        }
+        System.err.println(strings.get("HumanReadable.Messages.Conflicts", conflicts));
+    }
+
+    /**
+     * @return whether there are any calendars to merge
+     */
+    public boolean hasCalendars() {
+        return !calendars.isEmpty();
+    }
+
+    /**
+     * Prints a summary of all months that needed retries, that failed, and
+     * that were taken from the cache because their export failed.
+     */
+    private static void reportFailures(StringProvider strings, CalendarDataDownloader downloader,
+            Set<String> cachedNames) {
+        TreeSet<String> retried = new TreeSet<String>(downloader.getRetriedCalendars());
+        TreeSet<String> failed = new TreeSet<String>(downloader.getFailedCalendars());
+        TreeSet<String> stale = new TreeSet<String>(failed);
+        stale.retainAll(cachedNames);
+        failed.removeAll(stale);
+
+        if (!retried.isEmpty()) {
+            System.err.println(strings.get("HumanReadable.Messages.RetriedCalendars", String.join(", ", retried)));
+        }
+        if (!stale.isEmpty()) {
+            System.err.println(strings.get("HumanReadable.Messages.StaleCalendars", String.join(", ", stale)));
+        }
+        if (!failed.isEmpty()) {
+            System.err.println(strings.get("HumanReadable.Messages.FailedCalendars", String.join(", ", failed)));
+        }
+    }
+
+    /**
+     * Merges the calendars into one String. Prefer
+     * {@link CalendarProcessor#writeCalendarData(Writer)} for large calendars.
+     *
+     * @return the merged calendar data, or null if there weren't any calendars
      */
     public String getCalendarData() {
-        return calendarData;
+        if (!hasCalendars()) {
+            return null;
+        }
+        final StringWriter writer = new StringWriter();
+        try {
+            writeCalendarData(writer);
+        } catch (IOException e) {
+            // A StringWriter doesn't throw.
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
     }
 
 }
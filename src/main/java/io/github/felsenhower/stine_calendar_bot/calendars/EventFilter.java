@@ -0,0 +1,208 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which events end up in the merged calendar: Only those that overlap
+ * a window of dates, and whose SUMMARY or LOCATION match the include patterns
+ * (if any) but none of the exclude patterns. A freshly created instance
+ * accepts all events.
+ *
+ * Since every cached month only contains the events of that month, months
+ * that lie completely outside the window can be skipped before they are even
+ * read, see {@link EventFilter#containsMonth(String)}.
+ */
+public class EventFilter implements Predicate<CalendarEvent> {
+
+    private LocalDate from = null;
+    private LocalDate to = null;
+    private boolean futureOnly = false;
+    private final List<Pattern> includes = new ArrayList<Pattern>();
+    private final List<Pattern> excludes = new ArrayList<Pattern>();
+
+    /**
+     * @return the first day of the window, or null for no limit
+     */
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    /**
+     * @param from
+     *            the first day of the window, or null for no limit
+     */
+    public void setFrom(LocalDate from) {
+        this.from = from;
+    }
+
+    /**
+     * @return the last day of the window, or null for no limit
+     */
+    public LocalDate getTo() {
+        return to;
+    }
+
+    /**
+     * @param to
+     *            the last day of the window, or null for no limit
+     */
+    public void setTo(LocalDate to) {
+        this.to = to;
+    }
+
+    /**
+     * @return whether events that have already ended shall be left out
+     */
+    public boolean isFutureOnly() {
+        return futureOnly;
+    }
+
+    /**
+     * @param futureOnly
+     *            whether events that have already ended shall be left out
+     */
+    public void setFutureOnly(boolean futureOnly) {
+        this.futureOnly = futureOnly;
+    }
+
+    /**
+     * Adds a pattern that the SUMMARY or LOCATION of an event has to contain.
+     * If several are added, any of them suffices.
+     *
+     * @param pattern
+     *            the pattern
+     */
+    public void addInclude(Pattern pattern) {
+        includes.add(pattern);
+    }
+
+    /**
+     * Adds a pattern that neither the SUMMARY nor the LOCATION of an event may
+     * contain.
+     *
+     * @param pattern
+     *            the pattern
+     */
+    public void addExclude(Pattern pattern) {
+        excludes.add(pattern);
+    }
+
+    /**
+     * @return whether the filter accepts all events
+     */
+    public boolean isUnlimited() {
+        return from == null && to == null && !futureOnly && includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * @return whether the filter limits the events to a date window
+     */
+    public boolean hasDateWindow() {
+        return from != null || to != null || futureOnly;
+    }
+
+    /**
+     * Determines whether the given month may contain any events inside the
+     * window.
+     *
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01. Names in any other
+     *            format are always considered inside.
+     */
+    public boolean containsMonth(String name) {
+        final YearMonth month = MonthNames.parse(name);
+        if (month == null) {
+            return true;
+        }
+        final LocalDate earliest = getEarliestDate();
+        if (earliest != null && month.atEndOfMonth().isBefore(earliest)) {
+            return false;
+        }
+        if (to != null && month.atDay(1).isAfter(to)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the given event shall be kept. Events whose dates
+     * can't be read are only subject to the patterns.
+     */
+    @Override
+    public boolean test(CalendarEvent event) {
+        if (isUnlimited()) {
+            return true;
+        }
+        final LocalDate start = parseDate(event.getDtStart());
+        if (start != null) {
+            final LocalDate earliest = getEarliestDate();
+            if (earliest != null) {
+                // DTEND is exclusive, so an event that ends right at the start
+                // of the earliest day has ended the day before. Without a
+                // DTEND, the event lasts (at least) for the day it starts on.
+                final LocalDateTime end = parseDate(event.getDtEnd()) != null ? event.getEndTime() : null;
+                if (end != null ? !end.isAfter(earliest.atStartOfDay()) : start.isBefore(earliest)) {
+                    return false;
+                }
+            }
+            if (to != null && start.isAfter(to)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return true;
+        }
+        final String summary = event.getSummary();
+        final String location = event.getLocation();
+        if (!includes.isEmpty() && !matchesAny(includes, summary, location)) {
+            return false;
+        }
+        return !matchesAny(excludes, summary, location);
+    }
+
+    /**
+     * @return the first day that events have to reach, or null for no limit
+     */
+    private LocalDate getEarliestDate() {
+        if (!futureOnly) {
+            return from;
+        }
+        final LocalDate today = LocalDate.now();
+        return from == null || from.isBefore(today) ? today : from;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String summary, String location) {
+        for (Pattern pattern : patterns) {
+            if ((summary != null && pattern.matcher(summary).find())
+                    || (location != null && pattern.matcher(location).find())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the date of a DATE or DATE-TIME value, e.g. 20170412T081500.
+     *
+     * @return the date, or null if it can't be read
+     */
+    private static LocalDate parseDate(String value) {
+        if (value == null || value.length() < 8) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(value.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * An interval index over the events of several calendars, for fast
+ * time-window and overlap queries.
+ *
+ * The index is split into one partition per calendar (i.e. per month, like
+ * Y2017M01). A partition is only built when a query touches its month for the
+ * first time: Its events are sorted by start, and the running maximum of their
+ * ends is kept alongside, so the events that overlap a window can be found
+ * with two binary searches. Events are found through the month they are
+ * contained in. Months after a window are never built, while the months
+ * before it are built once to learn whether any of their events reach into
+ * it.
+ */
+public class EventIndex {
+
+    private final SortedMap<String, Calendar> calendars;
+    private final Predicate<CalendarEvent> filter;
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+    /**
+     * Creates a new EventIndex. Nothing is parsed until the first query.
+     *
+     * @param calendars
+     *            the calendars by name, e.g. Y2017M01
+     * @param filter
+     *            decides which events are indexed
+     */
+    public EventIndex(Map<String, Calendar> calendars, Predicate<CalendarEvent> filter) {
+        this.calendars = new TreeMap<String, Calendar>(calendars);
+        this.filter = filter;
+    }
+
+    /**
+     * Finds all events that overlap the given window, i.e. that start before
+     * its end and either end after its start or start inside of it (so events
+     * without a duration are found as well). Events without a readable
+     * DTSTART are not indexed.
+     *
+     * @param from
+     *            the start of the window (inclusive)
+     * @param to
+     *            the end of the window (exclusive)
+     * @return the events, sorted by start
+     */
+    public List<CalendarEvent> getEvents(LocalDateTime from, LocalDateTime to) {
+        final List<CalendarEvent> result = new ArrayList<CalendarEvent>();
+        if (!from.isBefore(to)) {
+            return result;
+        }
+        final YearMonth first = YearMonth.from(from);
+        final YearMonth last = YearMonth.from(to);
+        for (String name : calendars.keySet()) {
+            final YearMonth month = MonthNames.parse(name);
+            if (month != null && month.isAfter(last)) {
+                continue;
+            }
+            final Partition partition = getPartition(name);
+            // Earlier months only matter if one of their events lasts until
+            // the window, no matter how long ago it started.
+            if (month != null && month.isBefore(first) && !partition.reaches(from)) {
+                continue;
+            }
+            partition.collect(from, to, result);
+        }
+        Collections.sort(result, Partition.BY_START);
+        return result;
+    }
+
+    /**
+     * Finds all other events that overlap the given one, e.g. to detect
+     * conflicts between two courses.
+     *
+     * @param event
+     *            the event
+     * @return the overlapping events, sorted by start. If the event's times
+     *         can't be read, the list is empty.
+     */
+    public List<CalendarEvent> getOverlapping(CalendarEvent event) {
+        final LocalDateTime start = event.getStartTime();
+        final LocalDateTime end = event.getEndTime();
+        if (start == null) {
+            return new ArrayList<CalendarEvent>();
+        }
+        // Events without a duration still conflict with the events around
+        // them.
+        final List<CalendarEvent> result = getEvents(start, end.isAfter(start) ? end : start.plusNanos(1));
+        result.removeIf(other -> other == event);
+        return result;
+    }
+
+    /**
+     * @return the names of the partitions that have been built so far
+     */
+    public List<String> getLoadedPartitions() {
+        final List<String> result = new ArrayList<String>(partitions.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    private Partition getPartition(String name) {
+        return partitions.computeIfAbsent(name, key -> new Partition(calendars.get(key), filter));
+    }
+
+    /**
+     * The indexed events of one calendar.
+     */
+    private static class Partition {
+
+        private static final Comparator<CalendarEvent> BY_START = Comparator
+                .comparing(CalendarEvent::getStartTime);
+
+        private final CalendarEvent[] events;
+        private final LocalDateTime[] starts;
+        private final LocalDateTime[] ends;
+
+        /**
+         * The maximum of all ends up to each index. Unlike the ends
+         * themselves, it never decreases, so it can be searched.
+         */
+        private final LocalDateTime[] maxEnds;
+
+        private Partition(Calendar calendar, Predicate<CalendarEvent> filter) {
+            final List<CalendarEvent> indexed = new ArrayList<CalendarEvent>();
+            for (CalendarEvent event : calendar.getEvents()) {
+                if (event.getStartTime() != null && filter.test(event)) {
+                    indexed.add(event);
+                }
+            }
+            Collections.sort(indexed, BY_START);
+
+            final int size = indexed.size();
+            this.events = indexed.toArray(new CalendarEvent[size]);
+            this.starts = new LocalDateTime[size];
+            this.ends = new LocalDateTime[size];
+            this.maxEnds = new LocalDateTime[size];
+            for (int i = 0; i < size; i++) {
+                starts[i] = events[i].getStartTime();
+                ends[i] = events[i].getEndTime();
+                maxEnds[i] = i > 0 && maxEnds[i - 1].isAfter(ends[i]) ? maxEnds[i - 1] : ends[i];
+            }
+        }
+
+        /**
+         * @return whether any event ends after the given time
+         */
+        private boolean reaches(LocalDateTime time) {
+            return events.length > 0 && maxEnds[events.length - 1].isAfter(time);
+        }
+
+        /**
+         * @return whether the event at the given index overlaps a window that
+         *         starts at the given time, ignoring the window's end
+         */
+        private boolean isCandidate(int i, LocalDateTime from) {
+            return ends[i].isAfter(from) || !starts[i].isBefore(from);
+        }
+
+        /**
+         * Adds all events that overlap the window to the result.
+         */
+        private void collect(LocalDateTime from, LocalDateTime to, List<CalendarEvent> result) {
+            // Events before the first candidate end before the window (or at
+            // its start), events from the last one on start after it. Both
+            // the starts and the maximum ends never decrease, so the
+            // candidates can be searched.
+            int first = 0;
+            int high = events.length;
+            while (first < high) {
+                final int middle = (first + high) >>> 1;
+                if (maxEnds[middle].isAfter(from) || !starts[middle].isBefore(from)) {
+                    high = middle;
+                } else {
+                    first = middle + 1;
+                }
+            }
+            int last = first;
+            high = events.length;
+            while (last < high) {
+                final int middle = (last + high) >>> 1;
+                if (starts[middle].isBefore(to)) {
+                    last = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = first; i < last; i++) {
+                if (isCandidate(i, from)) {
+                    result.add(events[i]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the body of a calendar into its VEVENT records. Only the boundaries
+ * of the events are determined here, their properties are parsed by the
+ * {@link CalendarEvent} itself once they are needed.
+ */
+public final class EventParser {
+
+    private static final String EVENT_START = "BEGIN:VEVENT";
+    private static final String EVENT_END = "END:VEVENT";
+
+    private EventParser() {
+    }
+
+    /**
+     * Finds all events in the given part of the calendar data. Anything
+     * outside of VEVENT records is skipped.
+     *
+     * @param source
+     *            the calendar data
+     * @param from
+     *            the index to start at (inclusive)
+     * @param to
+     *            the index to stop at (exclusive)
+     * @return the events in the order they appear in
+     */
+    public static List<CalendarEvent> parse(CharSequence source, int from, int to) {
+        final List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+        int eventStart = -1;
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && source.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            final int next = lineEnd < to ? lineEnd + 1 : to;
+            if (eventStart < 0) {
+                if (lineEquals(source, lineStart, lineEnd, EVENT_START)) {
+                    eventStart = lineStart;
+                }
+            } else if (lineEquals(source, lineStart, lineEnd, EVENT_END)) {
+                events.add(new CalendarEvent(source, eventStart, next));
+                eventStart = -1;
+            }
+            lineStart = next;
+        }
+        return events;
+    }
+
+    /**
+     * Finds all events in the given body.
+     *
+     * @see EventParser#parse(CharSequence, int, int)
+     */
+    public static List<CalendarEvent> parse(CharSequence body) {
+        return parse(body, 0, body.length());
+    }
+
+    /**
+     * @return whether the line (without its carriage return) equals the given
+     *         String
+     */
+    private static boolean lineEquals(CharSequence source, int start, int end, String string) {
+        if (end > start && source.charAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end - start != string.length()) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (source.charAt(start + i) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
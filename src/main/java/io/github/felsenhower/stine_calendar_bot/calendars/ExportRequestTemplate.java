@@ -0,0 +1,89 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.html.HtmlSelect;
+import com.gargoylesoftware.htmlunit.html.SubmittableElement;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Captures the action URL, method and parameters of the calendar export form
+ * once, so the export of every month can be requested as plain HTTP request
+ * without loading, filling and submitting the form again.
+ */
+public class ExportRequestTemplate {
+
+    private final URL actionURL;
+    private final HttpMethod method;
+    private final String monthParameter;
+    private final List<NameValuePair> parameters;
+
+    /**
+     * Creates a new instance of ExportRequestTemplate
+     *
+     * @param page
+     *            the calendar export page
+     * @param select
+     *            the drop-down box for months
+     * @param exportButton
+     *            the button that submits the form
+     * @throws IllegalArgumentException
+     *             if the select is not part of a form or has no name
+     * @throws MalformedURLException
+     *             if the form's action can't be resolved
+     */
+    public ExportRequestTemplate(HtmlPage page, HtmlSelect select, SubmittableElement exportButton)
+            throws IllegalArgumentException, MalformedURLException {
+        final HtmlForm form = select.getEnclosingForm();
+        if (form == null || select.getNameAttribute().isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        this.actionURL = page.getFullyQualifiedUrl(form.getActionAttribute());
+        this.method = "get".equalsIgnoreCase(form.getMethodAttribute()) ? HttpMethod.GET : HttpMethod.POST;
+        this.monthParameter = select.getNameAttribute();
+        this.parameters = form.getParameterListForSubmit(exportButton);
+    }
+
+    /**
+     * Creates the request that exports the given month. Each call returns a
+     * new instance, so the requests may be used from different threads.
+     *
+     * @param name
+     *            the name of the month, e.g. Y2017M01
+     * @return the request
+     */
+    public WebRequest createRequest(String name) throws MalformedURLException, UnsupportedEncodingException {
+        final List<NameValuePair> monthParameters = new LinkedList<NameValuePair>();
+        for (NameValuePair parameter : parameters) {
+            if (parameter.getName().equals(monthParameter)) {
+                monthParameters.add(new NameValuePair(monthParameter, name));
+            } else {
+                monthParameters.add(parameter);
+            }
+        }
+
+        if (method == HttpMethod.GET) {
+            StringBuilder query = new StringBuilder();
+            for (NameValuePair parameter : monthParameters) {
+                query.append(query.length() == 0 ? "" : "&").append(URLEncoder.encode(parameter.getName(), "UTF-8"))
+                        .append('=').append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+            }
+            String base = actionURL.toExternalForm().replaceFirst("[?#].*$", "");
+            return new WebRequest(new URL(base + "?" + query), HttpMethod.GET);
+        } else {
+            WebRequest request = new WebRequest(actionURL, HttpMethod.POST);
+            request.setRequestParameters(monthParameters);
+            return request;
+        }
+    }
+
+}
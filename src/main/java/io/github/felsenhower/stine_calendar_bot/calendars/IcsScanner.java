@@ -0,0 +1,135 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+/**
+ * Finds the primary sections (header, body, and footer) of ICS data in a single
+ * backward pass, without building any copies of the data.
+ *
+ * The result is the same that the former regular expression
+ * <code>.*(BEGIN:VCALENDAR.*END:VTIMEZONE)(.*)(END:VCALENDAR).*</code> (in
+ * DOTALL mode) produced, but without its backtracking: The footer is the last
+ * END:VCALENDAR, the header ends with the last END:VTIMEZONE before it and
+ * starts with the last BEGIN:VCALENDAR before that, and the body is everything
+ * in between header and footer.
+ */
+public final class IcsScanner {
+
+    private static final String HEADER_START = "BEGIN:VCALENDAR";
+    private static final String HEADER_END = "END:VTIMEZONE";
+    private static final String FOOTER = "END:VCALENDAR";
+
+    private IcsScanner() {
+    }
+
+    /**
+     * Scans the given ICS data.
+     *
+     * @param data
+     *            the ICS data
+     * @return the sections of the data, or null if it is mal-formed
+     */
+    public static Sections scan(CharSequence data) {
+        if (data == null) {
+            return null;
+        }
+        final int footerStart = lastIndexOf(data, FOOTER, data.length());
+        if (footerStart < 0) {
+            return null;
+        }
+        final int headerEndStart = lastIndexOf(data, HEADER_END, footerStart);
+        if (headerEndStart < 0) {
+            return null;
+        }
+        final int headerStart = lastIndexOf(data, HEADER_START, headerEndStart);
+        if (headerStart < 0) {
+            return null;
+        }
+        return new Sections(headerStart, headerEndStart + HEADER_END.length(), footerStart,
+                footerStart + FOOTER.length());
+    }
+
+    /**
+     * Checks whether the given ICS data is well-formed.
+     *
+     * @param data
+     *            the ICS data
+     * @return whether the data contains a header, body, and footer
+     */
+    public static boolean isWellFormed(CharSequence data) {
+        return scan(data) != null;
+    }
+
+    /**
+     * Finds the last occurrence of the string that ends at or before the given
+     * index.
+     *
+     * @return the start of the occurrence, or -1 if there is none
+     */
+    private static int lastIndexOf(CharSequence data, String string, int end) {
+        final int length = string.length();
+        final char last = string.charAt(length - 1);
+        outer: for (int i = end - 1; i >= length - 1; i--) {
+            if (data.charAt(i) != last) {
+                continue;
+            }
+            final int start = i - length + 1;
+            for (int j = 0; j < length - 1; j++) {
+                if (data.charAt(start + j) != string.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * The boundaries of the sections. Header, body, and footer follow each
+     * other directly, everything before the header and after the footer is
+     * ignored.
+     */
+    public static final class Sections {
+
+        private final int headerStart;
+        private final int bodyStart;
+        private final int footerStart;
+        private final int footerEnd;
+
+        private Sections(int headerStart, int bodyStart, int footerStart, int footerEnd) {
+            this.headerStart = headerStart;
+            this.bodyStart = bodyStart;
+            this.footerStart = footerStart;
+            this.footerEnd = footerEnd;
+        }
+
+        /**
+         * @return the index of BEGIN:VCALENDAR
+         */
+        public int getHeaderStart() {
+            return headerStart;
+        }
+
+        /**
+         * @return the index right after END:VTIMEZONE, which is where the
+         *         header ends and the body starts
+         */
+        public int getBodyStart() {
+            return bodyStart;
+        }
+
+        /**
+         * @return the index of END:VCALENDAR, which is where the body ends and
+         *         the footer starts
+         */
+        public int getFooterStart() {
+            return footerStart;
+        }
+
+        /**
+         * @return the index right after END:VCALENDAR
+         */
+        public int getFooterEnd() {
+            return footerEnd;
+        }
+    }
+
+}
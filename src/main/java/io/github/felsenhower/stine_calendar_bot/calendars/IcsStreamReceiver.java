@@ -0,0 +1,198 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import io.github.felsenhower.stine_calendar_bot.util.CharsetDetector;
+
+/**
+ * Receives ICS data from a stream and writes it to a file in UTF-8 while it
+ * arrives. The character encoding is detected from the beginning of the
+ * stream. The data is then decoded piece by piece, and its structure
+ * (BEGIN:VCALENDAR, END:VTIMEZONE and END:VCALENDAR, in this order) is checked
+ * line by line on the way, so only a small buffer is needed instead of the
+ * whole calendar. A {@link CalendarFingerprint} is calculated as well.
+ *
+ * A byte order mark is dropped, just like
+ * {@link CharsetDetector#testCharsets(byte[], String...)} does it, so the
+ * written file is the same as if the data had been read completely.
+ */
+public class IcsStreamReceiver {
+
+    /**
+     * The number of bytes at the beginning of the stream that is used to
+     * detect the encoding. This must be large enough to contain BEGIN:VCALENDAR
+     * in any encoding.
+     */
+    private static final int PROBE_LENGTH = 4096;
+
+    private static final int BUFFER_LENGTH = 8192;
+
+    private static final String HEADER_START = "BEGIN:VCALENDAR";
+    private static final String HEADER_END = "END:VTIMEZONE";
+    private static final String FOOTER = "END:VCALENDAR";
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final CharsetDetector charsetDetector;
+
+    private String fingerprint = null;
+    private Charset charset = null;
+
+    /**
+     * Creates a new instance of IcsStreamReceiver
+     *
+     * @param charsetDetector
+     *            the {@link CharsetDetector} for finding out the encoding
+     */
+    public IcsStreamReceiver(CharsetDetector charsetDetector) {
+        this.charsetDetector = charsetDetector;
+    }
+
+    /**
+     * Receives the ICS data from the given stream and writes it to the given
+     * file. If the data turns out to be invalid, the file will be deleted
+     * again.
+     *
+     * @param stream
+     *            the stream to read from. It will not be closed.
+     * @param target
+     *            the file to write to
+     * @return whether the data was well-formed
+     */
+    public boolean receive(InputStream stream, Path target) throws IOException {
+        return receive(stream, target, false);
+    }
+
+    /**
+     * Receives the ICS data from the given stream and writes it to the given
+     * file, optionally compressed with GZIP. If the data turns out to be
+     * invalid, the file will be deleted again.
+     *
+     * @param stream
+     *            the stream to read from. It will not be closed.
+     * @param target
+     *            the file to write to
+     * @param compress
+     *            whether the file shall be compressed
+     * @return whether the data was well-formed
+     */
+    public boolean receive(InputStream stream, Path target, boolean compress) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(stream, BUFFER_LENGTH);
+
+        // Peek at the beginning of the stream to find out the encoding
+        in.mark(PROBE_LENGTH);
+        final byte[] probe = new byte[PROBE_LENGTH];
+        int probeLength = 0;
+        for (int read; probeLength < PROBE_LENGTH
+                && (read = in.read(probe, probeLength, PROBE_LENGTH - probeLength)) != -1;) {
+            probeLength += read;
+        }
+        in.reset();
+        final Charset charset = charsetDetector.getCharsetFromBytes(Arrays.copyOf(probe, probeLength), HEADER_START);
+        if (charset == null) {
+            return false;
+        }
+        this.charset = charset;
+
+        final CalendarFingerprint calendarFingerprint = new CalendarFingerprint();
+        final StringBuilder line = new StringBuilder();
+        int section = 0;
+
+        final OutputStream file = Files.newOutputStream(target);
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(compress ? new GZIPOutputStream(file) : file, StandardCharsets.UTF_8))) {
+            final Reader reader = new InputStreamReader(in, charset);
+            final char[] buffer = new char[BUFFER_LENGTH];
+            boolean first = true;
+            for (int read; (read = reader.read(buffer)) != -1;) {
+                int start = 0;
+                if (first && read > 0) {
+                    first = false;
+                    if (buffer[0] == BYTE_ORDER_MARK) {
+                        start = 1;
+                    }
+                }
+                out.write(buffer, start, read - start);
+                for (int i = start; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r') {
+                            line.setLength(length - 1);
+                        }
+                        section = checkLine(line, section);
+                        calendarFingerprint.update(line);
+                        line.setLength(0);
+                    } else {
+                        line.append(buffer[i]);
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                section = checkLine(line, section);
+                calendarFingerprint.update(line);
+            }
+        }
+
+        if (section != 3) {
+            Files.deleteIfExists(target);
+            return false;
+        }
+        this.fingerprint = calendarFingerprint.finish();
+        return true;
+    }
+
+    /**
+     * Advances the structure check by one line.
+     *
+     * @param line
+     *            the current line
+     * @param section
+     *            0 before BEGIN:VCALENDAR, 1 inside the header, 2 after
+     *            END:VTIMEZONE, 3 after END:VCALENDAR
+     * @return the section after the line
+     */
+    private static int checkLine(CharSequence line, int section) {
+        final String text = line.toString();
+        if (section == 0 && text.contains(HEADER_START)) {
+            section = 1;
+        }
+        if (section >= 1 && text.contains(HEADER_END)) {
+            section = 2;
+        }
+        if (section == 2 && text.contains(FOOTER)) {
+            section = 3;
+        }
+        return section;
+    }
+
+    /**
+     * @return the fingerprint of the last data that has been received
+     *         successfully, or null if there is none.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the charset of the last data that has been received, or null if
+     *         it couldn't be detected
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+}
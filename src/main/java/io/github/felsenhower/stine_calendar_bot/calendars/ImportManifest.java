@@ -0,0 +1,179 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import io.github.felsenhower.stine_calendar_bot.util.CacheWriter;
+
+/**
+ * Remembers what the {@link CalendarDataImporter} has found out about every
+ * cached calendar: its size, modification time, content hash, whether it was
+ * well-formed, and which charset it was decoded with. As long as size and
+ * modification time haven't changed, the calendar doesn't have to be read and
+ * checked again before it is actually needed. The manifest is kept in a
+ * properties file.
+ */
+public class ImportManifest {
+
+    private final Path file;
+    private final Properties records = new Properties();
+
+    /**
+     * Creates a new ImportManifest and reads the given file if it exists.
+     *
+     * @param file
+     *            the file the manifest is kept in
+     */
+    public ImportManifest(Path file) throws IOException {
+        this.file = file;
+        if (Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                records.load(reader);
+            }
+        }
+    }
+
+    /**
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the record of the calendar, or null if there is none
+     */
+    public synchronized Record get(String name) {
+        final String value = records.getProperty(name);
+        return value == null ? null : Record.parse(value);
+    }
+
+    /**
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @param record
+     *            the new record of the calendar
+     */
+    public synchronized void put(String name, Record record) {
+        records.setProperty(name, record.toString());
+    }
+
+    /**
+     * @param name
+     *            the name of the calendar that isn't cached anymore
+     */
+    public synchronized void remove(String name) {
+        records.remove(name);
+    }
+
+    /**
+     * Writes the manifest to a temporary file, which replaces the manifest
+     * with the next barrier of the given {@link CacheWriter}.
+     *
+     * @param writer
+     *            the {@link CacheWriter}
+     */
+    public synchronized void save(CacheWriter writer) throws IOException {
+        final Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        try (Writer out = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+            records.store(out, null);
+        }
+        writer.commit(partFile, file);
+    }
+
+    /**
+     * What is known about a single cached calendar.
+     */
+    public static class Record {
+        private final long size;
+        private final long modified;
+        private final String hash;
+        private final boolean valid;
+        private final String charset;
+
+        /**
+         * Creates a new Record
+         *
+         * @param size
+         *            the size of the stored calendar in bytes
+         * @param modified
+         *            the modification time of the stored calendar
+         * @param hash
+         *            the hash of the stored calendar
+         * @param valid
+         *            whether the calendar is well-formed
+         * @param charset
+         *            the charset the calendar was decoded with, or null
+         */
+        public Record(long size, long modified, String hash, boolean valid, Charset charset) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.valid = valid;
+            this.charset = charset == null ? "" : charset.name();
+        }
+
+        private Record(long size, long modified, String hash, boolean valid, String charset) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.valid = valid;
+            this.charset = charset;
+        }
+
+        /**
+         * Parses a record in the format size,modified,hash,valid,charset.
+         *
+         * @return the record, or null if it is mal-formed
+         */
+        private static Record parse(String value) {
+            final String[] fields = value.split(",", -1);
+            if (fields.length != 5) {
+                return null;
+            }
+            try {
+                return new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                        Boolean.parseBoolean(fields[3]), fields[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return whether the record describes a calendar with the given size
+         *         and modification time
+         */
+        public boolean matches(long size, long modified) {
+            return this.size == size && this.modified == modified;
+        }
+
+        /**
+         * @return the hash of the stored calendar
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return whether the calendar is well-formed
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * @return the charset the calendar was decoded with, or null if it is
+         *         unknown or not supported anymore
+         */
+        public Charset getCharset() {
+            return !charset.isEmpty() && Charset.isSupported(charset) ? Charset.forName(charset) : null;
+        }
+
+        @Override
+        public String toString() {
+            return size + "," + modified + "," + hash + "," + valid + "," + charset;
+        }
+    }
+
+}
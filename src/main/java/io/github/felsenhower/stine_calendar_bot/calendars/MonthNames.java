@@ -0,0 +1,38 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.time.DateTimeException;
+import java.time.YearMonth;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts between the calendar names that STiNE uses for its months (like
+ * Y2017M01 for January 2017) and {@link YearMonth}s.
+ */
+public final class MonthNames {
+
+    private static final Pattern MONTH_NAME = Pattern.compile("Y(\\d{4})M(\\d{2})");
+
+    private MonthNames() {
+    }
+
+    /**
+     * Parses the given calendar name.
+     * 
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01
+     * @return the month, or null if the name is not in the expected format
+     */
+    public static YearMonth parse(String name) {
+        Matcher matcher = MONTH_NAME.matcher(name);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            return YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.nio.file.Path;
+
+/**
+ * Bundles all the optional settings that influence how the calendars are
+ * downloaded, cached and merged. A freshly created instance carries the
+ * default values, so only the settings that differ need to be applied.
+ */
+public class ProcessingOptions {
+
+    private int sessions = 1;
+    private boolean directExport = false;
+    private boolean lean = true;
+    private boolean keepSession = false;
+    private RefreshWindow refreshWindow = new RefreshWindow();
+    private int timeout = 0;
+    private int retries = 2;
+    private boolean streamDownloads = true;
+    private String startpage = null;
+    private Path recordDirectory = null;
+    private EventFilter eventFilter = new EventFilter();
+    private boolean packedCache = false;
+    private boolean compactCache = false;
+    private boolean compressCache = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private RetentionPolicy retentionPolicy = new RetentionPolicy();
+    private boolean reportConflicts = false;
+
+    /**
+     * @return the number of Browser sessions that export months in parallel
+     */
+    public int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @param sessions
+     *            the number of Browser sessions that export months in
+     *            parallel. Values below 1 will be treated as 1.
+     */
+    public void setSessions(int sessions) {
+        this.sessions = Math.max(1, sessions);
+    }
+
+    /**
+     * @return whether the months shall be exported with plain HTTP requests
+     *         instead of browsing the export page for each of them
+     */
+    public boolean isDirectExport() {
+        return directExport;
+    }
+
+    /**
+     * @param directExport
+     *            whether the months shall be exported with plain HTTP requests
+     *            instead of browsing the export page for each of them
+     */
+    public void setDirectExport(boolean directExport) {
+        this.directExport = directExport;
+    }
+
+    /**
+     * @return whether the Browser shall skip images, stylesheets, fonts and
+     *         foreign scripts
+     */
+    public boolean isLean() {
+        return lean;
+    }
+
+    /**
+     * @param lean
+     *            whether the Browser shall skip images, stylesheets, fonts and
+     *            foreign scripts
+     */
+    public void setLean(boolean lean) {
+        this.lean = lean;
+    }
+
+    /**
+     * @return whether the login session shall be stored and continued on the
+     *         next run
+     */
+    public boolean isKeepSession() {
+        return keepSession;
+    }
+
+    /**
+     * @param keepSession
+     *            whether the login session shall be stored and continued on
+     *            the next run
+     */
+    public void setKeepSession(boolean keepSession) {
+        this.keepSession = keepSession;
+    }
+
+    /**
+     * @return the window of cached months that shall be exported again
+     */
+    public RefreshWindow getRefreshWindow() {
+        return refreshWindow;
+    }
+
+    /**
+     * @param refreshWindow
+     *            the window of cached months that shall be exported again
+     */
+    public void setRefreshWindow(RefreshWindow refreshWindow) {
+        this.refreshWindow = refreshWindow;
+    }
+
+    /**
+     * @return the timeout for every request in milliseconds, or 0 for
+     *         HtmlUnit's default
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout
+     *            the timeout for every request in milliseconds, or 0 for
+     *            HtmlUnit's default. Negative values will be treated as 0.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(0, timeout);
+    }
+
+    /**
+     * @return how often a failed month export will be retried
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries
+     *            how often a failed month export will be retried. Negative
+     *            values will be treated as 0.
+     */
+    public void setRetries(int retries) {
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * @return whether downloaded calendars shall be decoded, checked and
+     *         written to the cache while they are received, instead of being
+     *         read into memory completely
+     */
+    public boolean isStreamDownloads() {
+        return streamDownloads;
+    }
+
+    /**
+     * @param streamDownloads
+     *            whether downloaded calendars shall be decoded, checked and
+     *            written to the cache while they are received, instead of
+     *            being read into memory completely
+     */
+    public void setStreamDownloads(boolean streamDownloads) {
+        this.streamDownloads = streamDownloads;
+    }
+
+    /**
+     * @return the URL of the start page, or null for
+     *         MachineReadable.Web.Startpage
+     */
+    public String getStartpage() {
+        return startpage;
+    }
+
+    /**
+     * @param startpage
+     *            the URL of the start page, or null for
+     *            MachineReadable.Web.Startpage. Scripts of lean Browsers will
+     *            then only be allowed from its host.
+     */
+    public void setStartpage(String startpage) {
+        this.startpage = startpage;
+    }
+
+    /**
+     * @return the directory that all HTTP exchanges are recorded in, or null if
+     *         they shall not be recorded
+     */
+    public Path getRecordDirectory() {
+        return recordDirectory;
+    }
+
+    /**
+     * @param recordDirectory
+     *            the directory that all HTTP exchanges are recorded in, or null
+     *            if they shall not be recorded
+     */
+    public void setRecordDirectory(Path recordDirectory) {
+        this.recordDirectory = recordDirectory;
+    }
+
+    /**
+     * @return the {@link EventFilter} that decides which events end up in the
+     *         merged calendar
+     */
+    public EventFilter getEventFilter() {
+        return eventFilter;
+    }
+
+    /**
+     * @param eventFilter
+     *            the {@link EventFilter} that decides which events end up in
+     *            the merged calendar
+     */
+    public void setEventFilter(EventFilter eventFilter) {
+        this.eventFilter = eventFilter;
+    }
+
+    /**
+     * @return whether the calendars shall be cached in a single pack file
+     *         instead of one file per month
+     */
+    public boolean isPackedCache() {
+        return packedCache;
+    }
+
+    /**
+     * @param packedCache
+     *            whether the calendars shall be cached in a single pack file
+     *            instead of one file per month
+     */
+    public void setPackedCache(boolean packedCache) {
+        this.packedCache = packedCache;
+    }
+
+    /**
+     * @return whether the old calendar versions shall be removed from the pack
+     *         file after the calendars have been processed
+     */
+    public boolean isCompactCache() {
+        return compactCache;
+    }
+
+    /**
+     * @param compactCache
+     *            whether the old calendar versions shall be removed from the
+     *            pack file after the calendars have been processed
+     */
+    public void setCompactCache(boolean compactCache) {
+        this.compactCache = compactCache;
+    }
+
+    /**
+     * @return whether the cached calendars shall be compressed
+     */
+    public boolean isCompressCache() {
+        return compressCache;
+    }
+
+    /**
+     * @param compressCache
+     *            whether the cached calendars shall be compressed. Plain
+     *            calendars from before can still be read.
+     */
+    public void setCompressCache(boolean compressCache) {
+        this.compressCache = compressCache;
+    }
+
+    /**
+     * @return the number of threads that cached and downloaded months are
+     *         processed with
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism
+     *            the number of threads that cached and downloaded months are
+     *            processed with. Values below 1 will be treated as 1.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return the {@link RetentionPolicy} that decides which months are
+     *         evicted from the cache
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * @param retentionPolicy
+     *            the {@link RetentionPolicy} that decides which months are
+     *            evicted from the cache
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    /**
+     * @return whether overlapping events of the merged calendar shall be
+     *         reported
+     */
+    public boolean isReportConflicts() {
+        return reportConflicts;
+    }
+
+    /**
+     * @param reportConflicts
+     *            whether overlapping events of the merged calendar shall be
+     *            reported
+     */
+    public void setReportConflicts(boolean reportConflicts) {
+        this.reportConflicts = reportConflicts;
+    }
+
+}
@@ -0,0 +1,99 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.time.YearMonth;
+
+/**
+ * Describes which months shall be exported again although they are already
+ * cached: All months from a number of months in the past up to a number of
+ * months in the future, both relative to the current month. Both bounds may be
+ * unlimited. Months that haven't been cached yet will always be exported.
+ */
+public class RefreshWindow {
+
+    private static final String UNLIMITED = "*";
+
+    private final Integer pastMonths;
+    private final Integer futureMonths;
+
+    /**
+     * Creates a new RefreshWindow
+     * 
+     * @param pastMonths
+     *            the number of past months to refresh, or null for all
+     * @param futureMonths
+     *            the number of future months to refresh, or null for all
+     */
+    public RefreshWindow(Integer pastMonths, Integer futureMonths) {
+        this.pastMonths = pastMonths;
+        this.futureMonths = futureMonths;
+    }
+
+    /**
+     * Creates a new RefreshWindow that contains all months.
+     */
+    public RefreshWindow() {
+        this(null, null);
+    }
+
+    /**
+     * Parses a RefreshWindow in the format past:future, where each side is
+     * either a non-negative number of months or * for no limit. So 1:* means
+     * "from last month on".
+     * 
+     * @param representation
+     *            the String representation
+     * @return the RefreshWindow
+     * @throws IllegalArgumentException
+     *             if the representation is mal-formed
+     */
+    public static RefreshWindow parse(String representation) throws IllegalArgumentException {
+        String[] bounds = representation.trim().split(":", -1);
+        if (bounds.length != 2) {
+            throw new IllegalArgumentException(representation);
+        }
+        return new RefreshWindow(parseBound(bounds[0]), parseBound(bounds[1]));
+    }
+
+    private static Integer parseBound(String bound) throws IllegalArgumentException {
+        bound = bound.trim();
+        if (bound.equals(UNLIMITED)) {
+            return null;
+        }
+        int months = Integer.parseInt(bound);
+        if (months < 0) {
+            throw new IllegalArgumentException(bound);
+        }
+        return months;
+    }
+
+    /**
+     * Determines whether the given month lies inside the window.
+     * 
+     * @param name
+     *            the name of the calendar, e.g. Y2017M01. Names in any other
+     *            format are always considered inside.
+     * @param now
+     *            the current month
+     */
+    public boolean contains(String name, YearMonth now) {
+        YearMonth month = MonthNames.parse(name);
+        if (month == null) {
+            return true;
+        }
+        if (pastMonths != null && month.isBefore(now.minusMonths(pastMonths))) {
+            return false;
+        }
+        if (futureMonths != null && month.isAfter(now.plusMonths(futureMonths))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the window contains all months
+     */
+    public boolean isUnlimited() {
+        return pastMonths == null && futureMonths == null;
+    }
+
+}
@@ -0,0 +1,152 @@
+package io.github.felsenhower.stine_calendar_bot.calendars;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Decides which months are evicted from the calendar cache, so it doesn't
+ * grow without limit: Only the newest months are kept, up to a number of
+ * months and a total size, and months before a given one are evicted in any
+ * case. All limits are optional, and a freshly created instance keeps
+ * everything. Evicted months can be moved into an archive instead of being
+ * deleted.
+ *
+ * The current and future months are never evicted, and neither are the months
+ * inside a limited {@link RefreshWindow}, because they are still being
+ * updated.
+ */
+public class RetentionPolicy {
+
+    private Integer maxMonths = null;
+    private Long maxBytes = null;
+    private YearMonth since = null;
+    private boolean archive = false;
+
+    /**
+     * @return the number of months to keep, or null for no limit
+     */
+    public Integer getMaxMonths() {
+        return maxMonths;
+    }
+
+    /**
+     * @param maxMonths
+     *            the number of months to keep, or null for no limit
+     */
+    public void setMaxMonths(Integer maxMonths) {
+        this.maxMonths = maxMonths == null ? null : Math.max(0, maxMonths);
+    }
+
+    /**
+     * @return the total size of the kept months in bytes, or null for no
+     *         limit
+     */
+    public Long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes
+     *            the total size of the kept months in bytes, or null for no
+     *            limit
+     */
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes == null ? null : Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return the first month to keep, or null for no limit
+     */
+    public YearMonth getSince() {
+        return since;
+    }
+
+    /**
+     * @param since
+     *            the first month to keep, or null for no limit
+     */
+    public void setSince(YearMonth since) {
+        this.since = since;
+    }
+
+    /**
+     * @return whether evicted months shall be moved into the archive instead
+     *         of being deleted
+     */
+    public boolean isArchive() {
+        return archive;
+    }
+
+    /**
+     * @param archive
+     *            whether evicted months shall be moved into the archive
+     *            instead of being deleted
+     */
+    public void setArchive(boolean archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * @return whether the policy keeps all months
+     */
+    public boolean isUnlimited() {
+        return maxMonths == null && maxBytes == null && since == null;
+    }
+
+    /**
+     * Selects the months to evict. The months are considered from the newest
+     * to the oldest, and they are kept as long as they fit into all limits.
+     * Protected months are always kept, but they count towards the limits.
+     * Calendars whose names are not in the format Y2017M01 are always kept.
+     *
+     * @param sizes
+     *            the size in bytes of every calendar by name
+     * @param refreshWindow
+     *            the {@link RefreshWindow}. If it is limited, the months
+     *            inside of it are protected.
+     * @param now
+     *            the current month. It is protected along with all months
+     *            after it.
+     * @return the names of the months to evict
+     */
+    public List<String> select(Map<String, Long> sizes, RefreshWindow refreshWindow, YearMonth now) {
+        final NavigableMap<YearMonth, String> months = new TreeMap<YearMonth, String>();
+        for (String name : sizes.keySet()) {
+            final YearMonth month = MonthNames.parse(name);
+            if (month != null) {
+                months.put(month, name);
+            }
+        }
+
+        final List<String> evicted = new ArrayList<String>();
+        int keptMonths = 0;
+        long keptBytes = 0;
+        boolean full = false;
+        for (Map.Entry<YearMonth, String> month : months.descendingMap().entrySet()) {
+            final long size = sizes.get(month.getValue());
+            if (!month.getKey().isBefore(now)
+                    || (!refreshWindow.isUnlimited() && refreshWindow.contains(month.getValue(), now))) {
+                keptMonths++;
+                keptBytes += size;
+                continue;
+            }
+            // Once a month doesn't fit anymore, all older months are evicted
+            // as well, so the kept months don't have any gaps.
+            full = full || (since != null && month.getKey().isBefore(since))
+                    || (maxMonths != null && keptMonths >= maxMonths)
+                    || (maxBytes != null && keptBytes + size > maxBytes);
+            if (full) {
+                evicted.add(month.getValue());
+            } else {
+                keptMonths++;
+                keptBytes += size;
+            }
+        }
+        return evicted;
+    }
+
+}
@@ -0,0 +1,220 @@
+package io.github.felsenhower.stine_calendar_bot.main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+
+import io.github.felsenhower.stine_calendar_bot.calendars.CalendarProcessor;
+import io.github.felsenhower.stine_calendar_bot.calendars.ProcessingOptions;
+import io.github.felsenhower.stine_calendar_bot.util.PrefixingPrintStream;
+import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
+
+/**
+ * Runs the whole calendar pipeline for every account of a credentials file
+ * inside the same JVM, so the startup costs are only paid once.
+ *
+ * The credentials file is a properties file that maps every username to its
+ * password. Every account gets its own subdirectory inside the calendar cache
+ * and its own output file next to the given one, e.g. stine_calendar_user.ics.
+ * Usernames that can't be used as a directory name are skipped. All messages
+ * are prefixed with the account they belong to.
+ */
+public class BatchRunner {
+
+    /**
+     * The usernames that are safe to use as a directory and file name.
+     */
+    private static final Pattern VALID_USERNAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final StringProvider strings;
+    private final StringProvider messages;
+    private final Path calendarCache;
+    private final Path outputFile;
+    private final boolean echoPages;
+    private final ProcessingOptions options;
+    private final int concurrency;
+
+    /**
+     * Creates a new BatchRunner
+     *
+     * @param strings
+     *            a {@link StringProvider}
+     * @param calendarCache
+     *            the directory that contains the cache directories of all
+     *            accounts
+     * @param outputFile
+     *            the output file whose name is used as a template for the
+     *            output files of all accounts
+     * @param echoPages
+     *            whether the page contents shall be echo'ed during browsing
+     * @param options
+     *            the {@link ProcessingOptions} that are used for every account
+     * @param concurrency
+     *            the maximum number of accounts that are processed at the same
+     *            time
+     */
+    public BatchRunner(StringProvider strings, Path calendarCache, Path outputFile, boolean echoPages,
+            ProcessingOptions options, int concurrency) {
+        this.strings = strings;
+        this.messages = strings.from("HumanReadable.Messages");
+        this.calendarCache = calendarCache;
+        this.outputFile = outputFile;
+        this.echoPages = echoPages;
+        this.options = options;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Processes all accounts of the given credentials file and prints a
+     * summary afterwards.
+     *
+     * @param credentialsFile
+     *            the properties file that maps usernames to passwords
+     * @return the number of accounts that failed
+     */
+    public int run(Path credentialsFile) throws IOException, InterruptedException {
+        final Properties credentials = new Properties();
+        try (Reader reader = Files.newBufferedReader(credentialsFile, StandardCharsets.UTF_8)) {
+            credentials.load(reader);
+        }
+        final TreeSet<String> usernames = new TreeSet<String>();
+        int failed = 0;
+        for (String username : credentials.stringPropertyNames()) {
+            if (VALID_USERNAME.matcher(username).matches()) {
+                usernames.add(username);
+            } else {
+                System.err.println(messages.get("BatchInvalidUsername", username));
+                failed++;
+            }
+        }
+
+        final PrintStream err = System.err;
+        System.setErr(new PrefixingPrintStream(err));
+        try {
+            failed += run(credentials, usernames);
+        } finally {
+            System.setErr(err);
+        }
+        return failed;
+    }
+
+    /**
+     * Processes the given accounts and prints a summary afterwards.
+     *
+     * @return the number of accounts that failed
+     */
+    private int run(Properties credentials, TreeSet<String> usernames) throws InterruptedException {
+
+        // The executor itself may be unbounded (virtual threads), so the
+        // semaphore is what actually limits the number of running pipelines.
+        final Semaphore permits = new Semaphore(concurrency);
+        final ExecutorService executor = createExecutor(concurrency);
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        final long start = System.nanoTime();
+
+        for (String username : usernames) {
+            final String password = credentials.getProperty(username);
+            futures.add(executor.submit(() -> {
+                permits.acquire();
+                PrefixingPrintStream.setPrefix(username);
+                try {
+                    final long accountStart = System.nanoTime();
+                    processAccount(username, password);
+                    return System.nanoTime() - accountStart;
+                } finally {
+                    PrefixingPrintStream.setPrefix(null);
+                    permits.release();
+                }
+            }));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        final List<Long> latencies = new ArrayList<Long>();
+        int failed = 0;
+        int i = 0;
+        for (String username : usernames) {
+            try {
+                latencies.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                System.err.println(messages.get("BatchAccountFailed", username, e.getCause()));
+                failed++;
+            }
+            i++;
+        }
+
+        Collections.sort(latencies);
+        System.err.println(messages.get("BatchStatistics", latencies.size(), usernames.size(), concurrency,
+                elapsedSeconds, elapsedSeconds > 0 ? latencies.size() * 60 / elapsedSeconds : 0.0,
+                getPercentile(latencies, 50) / 1e9, getPercentile(latencies, 95) / 1e9));
+        return failed;
+    }
+
+    /**
+     * Runs the pipeline for one account and writes its output file.
+     */
+    private void processAccount(String username, String password) throws IOException {
+        final CalendarProcessor processor = new CalendarProcessor(strings, username, password,
+                calendarCache.resolve(username), echoPages, options);
+        if (!processor.hasCalendars()) {
+            return;
+        }
+        final Path accountOutputFile = getOutputFile(username);
+        System.err.println(messages.get("ExportingFile", accountOutputFile.getFileName()));
+        accountOutputFile.getParent().toFile().mkdirs();
+        Main.writeCalendarFile(accountOutputFile, processor);
+    }
+
+    /**
+     * @return the output file of the given account
+     */
+    private Path getOutputFile(String username) {
+        final String name = outputFile.getFileName().toString();
+        final String extension = FilenameUtils.getExtension(name);
+        return outputFile.resolveSibling(FilenameUtils.getBaseName(name) + "_" + username
+                + (extension.isEmpty() ? "" : "." + extension));
+    }
+
+    /**
+     * Creates an executor with one virtual thread per account if the runtime
+     * supports them, or a fixed pool with one thread per permit otherwise.
+     */
+    private static ExecutorService createExecutor(int concurrency) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(concurrency);
+        }
+    }
+
+    /**
+     * @return the given percentile of the sorted values (nearest rank), or 0
+     *         if there are none
+     */
+    private static long getPercentile(List<Long> sortedValues, int percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.size());
+        return sortedValues.get(Math.max(0, rank - 1));
+    }
+
+}
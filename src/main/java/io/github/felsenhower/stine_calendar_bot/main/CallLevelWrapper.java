@@ -4,10 +4,16 @@ import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Scanner;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,6 +28,10 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.UnrecognizedOptionException;
 
+import io.github.felsenhower.stine_calendar_bot.calendars.EventFilter;
+import io.github.felsenhower.stine_calendar_bot.calendars.ProcessingOptions;
+import io.github.felsenhower.stine_calendar_bot.calendars.RefreshWindow;
+import io.github.felsenhower.stine_calendar_bot.calendars.RetentionPolicy;
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
 /**
@@ -38,6 +48,11 @@ public class CallLevelWrapper {
 	private final Path calendarCache;
 	private final Path outputFile;
 	private final boolean echoCalendar;
+	private final Path batchFile;
+	private final int batchConcurrency;
+	private final Path replayDirectory;
+	private final int replayLatency;
+	private final ProcessingOptions processingOptions = new ProcessingOptions();
 
 	private final StringProvider strings;
 	private final StringProvider cliStrings;
@@ -55,6 +70,10 @@ public class CallLevelWrapper {
 		Path calendarCache = null;
 		Path outputFile = null;
 		boolean echoCalendar = false;
+		Path batchFile = null;
+		int batchConcurrency = 4;
+		Path replayDirectory = null;
+		int replayLatency = 0;
 
 		// These temporary options don't have descriptions and have their
 		// required-value all set to false
@@ -106,14 +125,35 @@ public class CallLevelWrapper {
 
 			cmd = parser.parse(this.options, args, false);
 
-			username = cmd.getOptionValue("user");
+			// In batch mode, the credentials come from the batch file, so
+			// --user and --pass are only required without it.
+			if (cmd.hasOption("batch")) {
+				batchFile = Paths.get(cmd.getOptionValue("batch")).toAbsolutePath();
+				if (cmd.hasOption("batch-concurrency")) {
+					batchConcurrency = Math.max(1, getIntOptionValue(cmd, "batch-concurrency"));
+				}
+			} else {
+				final List<String> missing = new LinkedList<String>();
+				for (String option : new String[] { "user", "pass" }) {
+					if (!cmd.hasOption(option)) {
+						missing.add(option);
+					}
+				}
+				if (!missing.isEmpty()) {
+					System.err.println(messages.get("MissingRequiredOption", String.join(", ", missing)));
+					this.printHelp();
+				}
 
-			// URL-decode the password (STiNE doesn't actually allow special
-			// chars in passwords, but meh...)
-			password = URLDecoder.decode(cmd.getOptionValue("pass"), "UTF-8");
-			// Double-dash signals that the password shall be read from stdin
-			if (password.equals("--")) {
-				password = readPassword(messages.get("PasswordQuery"), messages.get("PasswordFallbackMsg"));
+				username = cmd.getOptionValue("user");
+
+				// URL-decode the password (STiNE doesn't actually allow special
+				// chars in passwords, but meh...)
+				password = URLDecoder.decode(cmd.getOptionValue("pass"), "UTF-8");
+				// Double-dash signals that the password shall be read from
+				// stdin
+				if (password.equals("--")) {
+					password = readPassword(messages.get("PasswordQuery"), messages.get("PasswordFallbackMsg"));
+				}
 			}
 
 			echoPages = cmd.hasOption("echo");
@@ -128,6 +168,11 @@ public class CallLevelWrapper {
 			// double-dash is specified (for echo to stdout)
 			String outputStr = cmd.getOptionValue("output", strings.get("MachineReadable.Paths.OutputFile"));
 			if (outputStr.equals("--")) {
+				// Several calendars can't be told apart on stdout
+				if (batchFile != null) {
+					System.err.println(messages.get("InvalidArgument", "output", outputStr));
+					this.printHelp();
+				}
 				echoCalendar = true;
 				outputFile = null;
 			} else {
@@ -135,6 +180,86 @@ public class CallLevelWrapper {
 				outputFile = Paths.get(outputStr).toAbsolutePath();
 			}
 
+			if (cmd.hasOption("sessions")) {
+				processingOptions.setSessions(getIntOptionValue(cmd, "sessions"));
+			}
+			processingOptions.setDirectExport(cmd.hasOption("direct-export"));
+			processingOptions.setLean(!cmd.hasOption("no-lean"));
+			processingOptions.setKeepSession(cmd.hasOption("keep-session"));
+			if (cmd.hasOption("timeout")) {
+				processingOptions.setTimeout(getIntOptionValue(cmd, "timeout"));
+			}
+			if (cmd.hasOption("retries")) {
+				processingOptions.setRetries(getIntOptionValue(cmd, "retries"));
+			}
+			processingOptions.setStreamDownloads(!cmd.hasOption("no-streaming"));
+			if (cmd.hasOption("record")) {
+				processingOptions.setRecordDirectory(Paths.get(cmd.getOptionValue("record")).toAbsolutePath());
+			}
+			if (cmd.hasOption("replay")) {
+				replayDirectory = Paths.get(cmd.getOptionValue("replay")).toAbsolutePath();
+				if (cmd.hasOption("replay-latency")) {
+					replayLatency = Math.max(0, getIntOptionValue(cmd, "replay-latency"));
+				}
+			}
+			if (cmd.hasOption("refresh-window")) {
+				try {
+					processingOptions.setRefreshWindow(RefreshWindow.parse(cmd.getOptionValue("refresh-window")));
+				} catch (IllegalArgumentException e) {
+					System.err.println(messages.get("InvalidArgument", "refresh-window",
+							cmd.getOptionValue("refresh-window")));
+					this.printHelp();
+				}
+			}
+
+			processingOptions.setPackedCache(cmd.hasOption("packed-cache"));
+			processingOptions.setCompactCache(cmd.hasOption("compact-cache"));
+			processingOptions.setCompressCache(cmd.hasOption("compress-cache"));
+			if (cmd.hasOption("parallelism")) {
+				processingOptions.setParallelism(getIntOptionValue(cmd, "parallelism"));
+			}
+
+			final RetentionPolicy retentionPolicy = processingOptions.getRetentionPolicy();
+			if (cmd.hasOption("retain-months")) {
+				retentionPolicy.setMaxMonths(getIntOptionValue(cmd, "retain-months"));
+			}
+			if (cmd.hasOption("retain-bytes")) {
+				retentionPolicy.setMaxBytes(getLongOptionValue(cmd, "retain-bytes"));
+			}
+			if (cmd.hasOption("retain-since")) {
+				retentionPolicy.setSince(YearMonth.from(getDateOptionValue(cmd, "retain-since")));
+			}
+			retentionPolicy.setArchive(cmd.hasOption("archive"));
+			processingOptions.setReportConflicts(cmd.hasOption("conflicts"));
+
+			final EventFilter filter = processingOptions.getEventFilter();
+			if (cmd.hasOption("from")) {
+				filter.setFrom(getDateOptionValue(cmd, "from"));
+			}
+			if (cmd.hasOption("to")) {
+				filter.setTo(getDateOptionValue(cmd, "to"));
+			}
+			filter.setFutureOnly(cmd.hasOption("future-only"));
+			for (String option : new String[] { "include", "exclude" }) {
+				if (!cmd.hasOption(option)) {
+					continue;
+				}
+				for (String value : cmd.getOptionValues(option)) {
+					try {
+						final Pattern pattern = Pattern.compile(value,
+								Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+						if (option.equals("include")) {
+							filter.addInclude(pattern);
+						} else {
+							filter.addExclude(pattern);
+						}
+					} catch (PatternSyntaxException e) {
+						System.err.println(messages.get("InvalidArgument", option, value));
+						this.printHelp();
+					}
+				}
+			}
+
 		} catch (UnrecognizedOptionException e) {
 			System.err.println(messages.get("UnrecognisedOption", e.getOption().toString()));
 			this.printHelp();
@@ -187,6 +312,10 @@ public class CallLevelWrapper {
 		this.calendarCache = calendarCache;
 		this.outputFile = outputFile;
 		this.echoCalendar = echoCalendar;
+		this.batchFile = batchFile;
+		this.batchConcurrency = batchConcurrency;
+		this.replayDirectory = replayDirectory;
+		this.replayLatency = replayLatency;
 	}
 
 	/**
@@ -215,6 +344,72 @@ public class CallLevelWrapper {
 		return result;
 	}
 
+	/**
+	 * Parses the value of the given option as an integer. Prints an error
+	 * message and the help screen (and hence exits the application) if the
+	 * value is not a valid integer.
+	 * 
+	 * @param cmd
+	 *            the parsed command line
+	 * @param option
+	 *            the long name of the option
+	 * @return the parsed value
+	 */
+	private int getIntOptionValue(CommandLine cmd, String option) {
+		String value = cmd.getOptionValue(option);
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println(messages.get("InvalidArgument", option, value));
+			this.printHelp();
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the value of the given option as a long integer. Prints an error
+	 * message and the help screen (and hence exits the application) if the
+	 * value is not a valid long integer.
+	 * 
+	 * @param cmd
+	 *            the parsed command line
+	 * @param option
+	 *            the long name of the option
+	 * @return the parsed value
+	 */
+	private long getLongOptionValue(CommandLine cmd, String option) {
+		String value = cmd.getOptionValue(option);
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println(messages.get("InvalidArgument", option, value));
+			this.printHelp();
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the value of the given option as an ISO date (yyyy-mm-dd). Prints
+	 * an error message and the help screen (and hence exits the application)
+	 * if the value is not a valid date.
+	 * 
+	 * @param cmd
+	 *            the parsed command line
+	 * @param option
+	 *            the long name of the option
+	 * @return the parsed value
+	 */
+	private LocalDate getDateOptionValue(CommandLine cmd, String option) {
+		String value = cmd.getOptionValue(option);
+		try {
+			return LocalDate.parse(value.trim());
+		} catch (DateTimeParseException e) {
+			System.err.println(messages.get("InvalidArgument", option, value));
+			this.printHelp();
+			return null;
+		}
+	}
+
 	/**
 	 * Prints the help screen for the current Options instance and exits the
 	 * application
@@ -263,7 +458,6 @@ public class CallLevelWrapper {
 
 			options.addOption(Option.builder("u")
 					                .longOpt("user")
-					                .required()
 					                .hasArg()
 					                .argName("user")
 					                .desc(cliStrings.get("UserDescription"))
@@ -271,7 +465,6 @@ public class CallLevelWrapper {
 
 			options.addOption(Option.builder("p")
 					                .longOpt("pass")
-					                .required()
 					                .hasArg()
 					                .argName("pass")
 					                .desc(cliStrings.get("PassDescription"))
@@ -295,6 +488,175 @@ public class CallLevelWrapper {
 					                .argName("file")
 					                .desc(cliStrings.get("OutputDescription", "MachineReadable.Paths.OutputFile"))
                    					.build());
+
+			options.addOption(Option.builder()
+					                .longOpt("sessions")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("SessionsDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("direct-export")
+					                .desc(cliStrings.get("DirectExportDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("no-lean")
+					                .desc(cliStrings.get("NoLeanDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("keep-session")
+					                .desc(cliStrings.get("KeepSessionDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("refresh-window")
+					                .hasArg()
+					                .argName("past:future")
+					                .desc(cliStrings.get("RefreshWindowDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("timeout")
+					                .hasArg()
+					                .argName("ms")
+					                .desc(cliStrings.get("TimeoutDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("retries")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("RetriesDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("no-streaming")
+					                .desc(cliStrings.get("NoStreamingDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("batch")
+					                .hasArg()
+					                .argName("file")
+					                .desc(cliStrings.get("BatchDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("batch-concurrency")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("BatchConcurrencyDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("record")
+					                .hasArg()
+					                .argName("dir")
+					                .desc(cliStrings.get("RecordDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("replay")
+					                .hasArg()
+					                .argName("dir")
+					                .desc(cliStrings.get("ReplayDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("replay-latency")
+					                .hasArg()
+					                .argName("ms")
+					                .desc(cliStrings.get("ReplayLatencyDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("from")
+					                .hasArg()
+					                .argName("date")
+					                .desc(cliStrings.get("FromDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("to")
+					                .hasArg()
+					                .argName("date")
+					                .desc(cliStrings.get("ToDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("future-only")
+					                .desc(cliStrings.get("FutureOnlyDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("include")
+					                .hasArg()
+					                .argName("regex")
+					                .desc(cliStrings.get("IncludeDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("exclude")
+					                .hasArg()
+					                .argName("regex")
+					                .desc(cliStrings.get("ExcludeDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("packed-cache")
+					                .desc(cliStrings.get("PackedCacheDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("compact-cache")
+					                .desc(cliStrings.get("CompactCacheDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("compress-cache")
+					                .desc(cliStrings.get("CompressCacheDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("parallelism")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("ParallelismDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("retain-months")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("RetainMonthsDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("retain-bytes")
+					                .hasArg()
+					                .argName("n")
+					                .desc(cliStrings.get("RetainBytesDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("retain-since")
+					                .hasArg()
+					                .argName("date")
+					                .desc(cliStrings.get("RetainSinceDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("archive")
+					                .desc(cliStrings.get("ArchiveDescription"))
+					                .build());
+
+			options.addOption(Option.builder()
+					                .longOpt("conflicts")
+					                .desc(cliStrings.get("ConflictsDescription"))
+					                .build());
 			// @formatter:on
 		} else {
 			// @formatter:off
@@ -305,6 +667,33 @@ public class CallLevelWrapper {
 			options.addOption(Option.builder("e").longOpt("echo").build());
 			options.addOption(Option.builder("c").longOpt("cache-dir").hasArg().argName("dir").build());
 			options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file").build());
+			options.addOption(Option.builder().longOpt("sessions").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("direct-export").build());
+			options.addOption(Option.builder().longOpt("no-lean").build());
+			options.addOption(Option.builder().longOpt("keep-session").build());
+			options.addOption(Option.builder().longOpt("refresh-window").hasArg().argName("past:future").build());
+			options.addOption(Option.builder().longOpt("timeout").hasArg().argName("ms").build());
+			options.addOption(Option.builder().longOpt("retries").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("no-streaming").build());
+			options.addOption(Option.builder().longOpt("batch").hasArg().argName("file").build());
+			options.addOption(Option.builder().longOpt("batch-concurrency").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("record").hasArg().argName("dir").build());
+			options.addOption(Option.builder().longOpt("replay").hasArg().argName("dir").build());
+			options.addOption(Option.builder().longOpt("replay-latency").hasArg().argName("ms").build());
+			options.addOption(Option.builder().longOpt("from").hasArg().argName("date").build());
+			options.addOption(Option.builder().longOpt("to").hasArg().argName("date").build());
+			options.addOption(Option.builder().longOpt("future-only").build());
+			options.addOption(Option.builder().longOpt("include").hasArg().argName("regex").build());
+			options.addOption(Option.builder().longOpt("exclude").hasArg().argName("regex").build());
+			options.addOption(Option.builder().longOpt("packed-cache").build());
+			options.addOption(Option.builder().longOpt("compact-cache").build());
+			options.addOption(Option.builder().longOpt("compress-cache").build());
+			options.addOption(Option.builder().longOpt("parallelism").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("retain-months").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("retain-bytes").hasArg().argName("n").build());
+			options.addOption(Option.builder().longOpt("retain-since").hasArg().argName("date").build());
+			options.addOption(Option.builder().longOpt("archive").build());
+			options.addOption(Option.builder().longOpt("conflicts").build());
 			// @formatter:on
 		}
 		return options;
@@ -354,6 +743,44 @@ public class CallLevelWrapper {
 		return echoCalendar;
 	}
 
+	/**
+	 * @return the credentials file for batch mode, or null if only a single
+	 *         account shall be processed
+	 */
+	public Path getBatchFile() {
+		return batchFile;
+	}
+
+	/**
+	 * @return the maximum number of accounts that are processed at the same
+	 *         time in batch mode
+	 */
+	public int getBatchConcurrency() {
+		return batchConcurrency;
+	}
+
+	/**
+	 * @return the fixture directory that shall be replayed instead of
+	 *         connecting to STiNE, or null
+	 */
+	public Path getReplayDirectory() {
+		return replayDirectory;
+	}
+
+	/**
+	 * @return the delay in milliseconds before every replayed response
+	 */
+	public int getReplayLatency() {
+		return replayLatency;
+	}
+
+	/**
+	 * @return the {@link ProcessingOptions} that were set via the command line
+	 */
+	public ProcessingOptions getProcessingOptions() {
+		return processingOptions;
+	}
+
 	/**
 	 * @return the {@link StringProvider} according to the specified --language
 	 *         argument
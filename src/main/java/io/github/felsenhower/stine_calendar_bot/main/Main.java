@@ -1,12 +1,19 @@
 package io.github.felsenhower.stine_calendar_bot.main;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-
-import org.apache.commons.io.FileUtils;
+import java.util.zip.GZIPOutputStream;
 
 import io.github.felsenhower.stine_calendar_bot.calendars.CalendarProcessor;
+import io.github.felsenhower.stine_calendar_bot.calendars.ProcessingOptions;
+import io.github.felsenhower.stine_calendar_bot.util.CacheWriter;
+import io.github.felsenhower.stine_calendar_bot.util.ReplayServer;
 import io.github.felsenhower.stine_calendar_bot.util.StringProvider;
 
 /**
@@ -40,75 +47,75 @@ public class Main {
         // acquires by parsing the (optional) --language option.
         this.strings = cli.getStringProvider();
 
-        final String username = cli.getUsername();
-        final String password = cli.getPassword();
         final boolean echoPages = cli.isEchoPages();
         final Path calendarCache = cli.getCalendarCache();
         final Path outputFile = cli.getOutputFile();
+        final ProcessingOptions options = cli.getProcessingOptions();
+
+        // Replayed runs talk to a local stand-in for STiNE instead. Its
+        // threads are daemons, so it doesn't have to be stopped explicitly.
+        if (cli.getReplayDirectory() != null) {
+            ReplayServer server = new ReplayServer(strings, cli.getReplayDirectory(), cli.getReplayLatency());
+            System.err.println(strings.get("HumanReadable.Messages.ReplayServerStarted", server.getExchangeCount(),
+                    cli.getReplayDirectory(), server.getStartpage()));
+            options.setStartpage(server.getStartpage());
+        }
+
+        // In batch mode, every account from the credentials file runs through
+        // the same pipeline as a single one would.
+        if (cli.getBatchFile() != null) {
+            int failed = new BatchRunner(strings, calendarCache, outputFile, echoPages, options,
+                    cli.getBatchConcurrency()).run(cli.getBatchFile());
+            System.exit(failed == 0 ? 0 : 1);
+        }
+
+        final String username = cli.getUsername();
+        final String password = cli.getPassword();
         final boolean echoCalendar = cli.isEchoCalendar();
 
         // Acquire the calendar data
         // NOTE: This takes time.
-        String calendarData = (new CalendarProcessor(strings, username, password, calendarCache, echoPages)).getCalendarData();
+        CalendarProcessor processor = new CalendarProcessor(strings, username, password, calendarCache, echoPages,
+                options);
+        if (!processor.hasCalendars()) {
+            System.exit(0);
+        }
 
-        // Echo the calendar to stdout or save it to file
+        // Echo the calendar to stdout or save it to file. Either way, the
+        // merged calendar is written piece by piece.
         if (echoCalendar) {
-            System.out.println(calendarData);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            processor.writeCalendarData(writer);
+            writer.write(System.lineSeparator());
+            writer.flush();
         } else {
             System.err.println(strings.get("HumanReadable.Messages.ExportingFile", outputFile.getFileName()));
-            outputFile.toFile().mkdirs();
-            Main.writeCalendarFile(outputFile, calendarData);
+            outputFile.getParent().toFile().mkdirs();
+            Main.writeCalendarFile(outputFile, processor);
         }
     }
 
     /**
-     * Writes a calendar to file.
+     * Writes the merged calendar of the given {@link CalendarProcessor} to
+     * file. It is written to a temporary file next to the target first, which
+     * is synced to disk and then atomically replaces the target. If the target
+     * ends with .gz, it is compressed with GZIP.
      * 
-     * @param oldFilePath
-     *            the target filename. If it already exists, it will be
-     *            replaced.
-     * @param newFilePath
-     *            the temporary filename
-     * @param content
-     *            the calendar data
+     * @param filename
+     *            the target filename
+     * @param processor
+     *            the {@link CalendarProcessor} with the calendars to merge
      */
-    private static void writeCalendarFile(Path oldFilePath, Path newFilePath, String content) throws IOException {
-        final File oldFile = oldFilePath.toFile();
-        final File newFile = newFilePath.toFile();
-
-        FileUtils.writeStringToFile(newFile, content, "UTF-8");
-
-        if (oldFile.exists()) {
-            oldFile.delete();
+    public static void writeCalendarFile(Path filename, CalendarProcessor processor) throws IOException {
+        final Path partFile = filename.resolveSibling(filename.getFileName() + ".part");
+        final OutputStream file = Files.newOutputStream(partFile);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                filename.toString().endsWith(".gz") ? new GZIPOutputStream(file) : file, StandardCharsets.UTF_8))) {
+            processor.writeCalendarData(writer);
         }
-        newFile.renameTo(oldFile);
-    }
-
-    /**
-     * Writes a calendar to file.
-     * 
-     * @see Main#writeCalendarFile(String, Path, String)
-     */
-    public static void writeCalendarFile(Path filename, String content) throws IOException {
-        writeCalendarFile(filename, filename.resolveSibling(filename.getFileName() + ".part"), content);
-    }
-
-    /**
-     * Writes a calendar to file.
-     * 
-     * @param name
-     *            the filename without the .ics extension
-     * @param dir
-     *            the parent directory
-     * @param content
-     *            the calendar data
-     * 
-     * @see Main#writeCalendarFile(String, Path, String)
-     */
-    public static void writeCalendarFile(String name, Path dir, String content) throws IOException {
-        final Path oldFilePath = dir.resolve(name + ".ics");
-        final Path newFilePath = dir.resolve(name + ".ics.part");
-        writeCalendarFile(oldFilePath, newFilePath, content);
+        final CacheWriter cacheWriter = new CacheWriter();
+        cacheWriter.commit(partFile, filename);
+        cacheWriter.sync();
     }
 
 }
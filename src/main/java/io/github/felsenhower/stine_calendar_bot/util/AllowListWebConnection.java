@@ -0,0 +1,93 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * This WebConnection only lets through the requests that are needed for
+ * browsing through STiNE. Images, stylesheets and fonts are never loaded, and
+ * scripts only if they come from the allowed domain. Blocked requests are
+ * answered with an empty response instead of being sent. Additionally, all
+ * requests and received bytes are counted.
+ */
+public class AllowListWebConnection extends WebConnectionWrapper {
+
+    private static final Pattern RESOURCE_PATH = Pattern
+            .compile(".*\\.(png|jpe?g|gif|ico|svg|webp|bmp|css|woff2?|ttf|otf|eot)$");
+    private static final Pattern SCRIPT_PATH = Pattern.compile(".*\\.js$");
+    private static final Pattern RESOURCE_ACCEPT = Pattern.compile("^(image/|text/css|font/).*");
+
+    private final String allowedDomain;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong blockedRequests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates a new AllowListWebConnection and installs it into the given
+     * WebClient.
+     *
+     * @param webclient
+     *            the WebClient whose connection shall be wrapped
+     * @param allowedDomain
+     *            the domain (including all of its subdomains) from which
+     *            scripts may be loaded
+     */
+    public AllowListWebConnection(WebClient webclient, String allowedDomain) {
+        super(webclient);
+        this.allowedDomain = allowedDomain.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public WebResponse getResponse(WebRequest request) throws IOException {
+        if (isBlocked(request)) {
+            blockedRequests.incrementAndGet();
+            return new WebResponse(new WebResponseData(new byte[0], 200, "OK", Collections.<NameValuePair>emptyList()),
+                    request, 0);
+        }
+        WebResponse response = super.getResponse(request);
+        requests.incrementAndGet();
+        bytes.addAndGet(Math.max(0, response.getContentLength()));
+        return response;
+    }
+
+    /**
+     * Determines whether the given request shall not be sent.
+     */
+    private boolean isBlocked(WebRequest request) {
+        final URL url = request.getUrl();
+        final String path = url.getPath().toLowerCase(Locale.ROOT);
+        final String accept = request.getAdditionalHeader("Accept");
+
+        if (RESOURCE_PATH.matcher(path).matches() || (accept != null && RESOURCE_ACCEPT.matcher(accept).matches())) {
+            return true;
+        }
+        if (SCRIPT_PATH.matcher(path).matches()) {
+            final String host = url.getHost().toLowerCase(Locale.ROOT);
+            return !(host.equals(allowedDomain) || host.endsWith("." + allowedDomain));
+        }
+        return false;
+    }
+
+    /**
+     * Returns the counters since the last call and resets them.
+     *
+     * @return the number of sent requests, the number of blocked requests, and
+     *         the number of received bytes
+     */
+    public long[] takeStatistics() {
+        return new long[] { requests.getAndSet(0), blockedRequests.getAndSet(0), bytes.getAndSet(0) };
+    }
+
+}
@@ -3,23 +3,28 @@ package io.github.felsenhower.stine_calendar_bot.util;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.Cookie;
 
 /**
  * This class is used for browsing through the STiNE website. It mainly is a
  * wrapper for HTMLUnit's WebClient class, but also adds a few convenience
  * methods that make browsing a lot less wordy.
  */
-public class Browser {
+public class Browser implements AutoCloseable {
 
     private final WebClient webclient;
 
@@ -27,21 +32,110 @@ public class Browser {
     
     private final boolean echoPages;
 
-    public Browser(String startpage, boolean echoPages) throws IOException {
+    private final StringProvider strings;
+
+    /**
+     * The domain from which a lean Browser may load scripts.
+     */
+    private final String allowedDomain;
+
+    /**
+     * The store that all exchanges are recorded in, or null if they aren't
+     * recorded.
+     */
+    private final FixtureStore fixtureStore;
+
+    /**
+     * The connection that blocks unneeded requests and counts the traffic, or
+     * null if the Browser is not lean.
+     */
+    private final AllowListWebConnection allowListConnection;
+
+    /**
+     * The sent requests, blocked requests and received bytes of all pages
+     * before the current one.
+     */
+    private final long[] trafficTotals = new long[3];
+
+    /**
+     * Creates a new Browser that doesn't navigate anywhere, so
+     * {@link Browser#gotoURL(URL)} has to be called before the page can be
+     * used.
+     * 
+     * @param echoPages
+     *            whether the pages (and their traffic statistics) shall be
+     *            echo'd to stdout
+     * @param lean
+     *            whether only the requests needed for browsing shall be sent.
+     *            Images, stylesheets, fonts, and scripts from other domains
+     *            than the allowed domain will be skipped.
+     * @param strings
+     *            a {@link StringProvider}. May only be null if the Browser is
+     *            not lean.
+     * @param allowedDomain
+     *            the domain (including all of its subdomains) from which a
+     *            lean Browser may load scripts
+     * @param fixtureStore
+     *            the {@link FixtureStore} that all exchanges shall be recorded
+     *            in, or null
+     */
+    public Browser(boolean echoPages, boolean lean, StringProvider strings, String allowedDomain,
+            FixtureStore fixtureStore) {
+
+        webclient = createWebClient(lean);
+
+        this.strings = strings;
+        this.allowedDomain = allowedDomain;
+        this.fixtureStore = fixtureStore;
+
+        // The recording connection has to be installed first, so it only sees
+        // the requests that the lean connection lets through.
+        if (fixtureStore != null) {
+            new RecordingWebConnection(webclient, fixtureStore);
+        }
+        this.allowListConnection = lean ? new AllowListWebConnection(webclient, allowedDomain) : null;
+        this.echoPages = echoPages;
+    }
+
+    /**
+     * Creates a new Browser that shares the session and settings of the given
+     * Browser by copying all of its cookies. The new Browser doesn't navigate
+     * anywhere, so {@link Browser#gotoURL(URL)} has to be called before the
+     * page can be used.
+     * 
+     * @param parent
+     *            the (usually logged-in) Browser whose session shall be used
+     */
+    public Browser(Browser parent) {
+        this(parent.echoPages, parent.allowListConnection != null, parent.strings, parent.allowedDomain,
+                parent.fixtureStore);
+        this.setTimeout(parent.webclient.getOptions().getTimeout());
+        this.addCookies(parent.getCookies());
+    }
+
+    /**
+     * Creates and configures the WebClient that is used for browsing.
+     * 
+     * @param lean
+     *            whether CSS processing shall be turned off
+     */
+    private static WebClient createWebClient(boolean lean) {
 
         // Turn off annoying HTMLUnit logging
         java.util.logging.Logger.getLogger("com.gargoylesoftware").setLevel(Level.OFF);
 
-        webclient = new WebClient(BrowserVersion.BEST_SUPPORTED);
+        WebClient webclient = new WebClient(BrowserVersion.BEST_SUPPORTED);
 
         // Initialise browser settings
         webclient.getOptions().setJavaScriptEnabled(true);
         webclient.getOptions().setUseInsecureSSL(true);
         webclient.getCookieManager().setCookiesEnabled(true);
+        if (lean) {
+            webclient.getOptions().setCssEnabled(false);
+            webclient.getOptions().setDownloadImages(false);
+        }
 
-        this.gotoURL(startpage);
-        
-        this.echoPages = echoPages;
+        return webclient;
     }
 
     /**
@@ -64,6 +158,13 @@ public class Browser {
         if (showContent) {
             showPageContent();
         }
+        if (allowListConnection != null) {
+            long[] pageTraffic = takeTrafficStatistics();
+            if (echoPages) {
+                System.out.println(strings.get("HumanReadable.Messages.PageStatistics", this.page.getUrl(),
+                        pageTraffic[0], pageTraffic[1], pageTraffic[2]));
+            }
+        }
     }
 
     /**
@@ -114,6 +215,64 @@ public class Browser {
         this.gotoURL(url, false);
     }
 
+    /**
+     * Sets the timeout for every request of the Browser.
+     * 
+     * @param timeout
+     *            the timeout in milliseconds, 0 means no timeout
+     */
+    public void setTimeout(int timeout) {
+        webclient.getOptions().setTimeout(timeout);
+    }
+
+    /**
+     * @return all cookies of the Browser's session
+     */
+    public Set<Cookie> getCookies() {
+        return webclient.getCookieManager().getCookies();
+    }
+
+    /**
+     * Adds the given cookies to the Browser's session.
+     * 
+     * @param cookies
+     *            the cookies to add
+     */
+    public void addCookies(Collection<Cookie> cookies) {
+        for (Cookie cookie : cookies) {
+            webclient.getCookieManager().addCookie(cookie);
+        }
+    }
+
+    /**
+     * Removes all cookies and hence ends the Browser's session.
+     */
+    public void clearCookies() {
+        webclient.getCookieManager().clearCookies();
+    }
+
+    /**
+     * Sends the given request with the Browser's session, but without building
+     * a page from the response. The current page remains unchanged.
+     * 
+     * @param request
+     *            the request to send
+     * @return the raw response
+     */
+    public WebResponse loadWebResponse(WebRequest request) throws IOException {
+        return webclient.loadWebResponse(request);
+    }
+
+    /**
+     * Sends a GET request for the given URL with the Browser's session, but
+     * without building a page from the response.
+     * 
+     * @see Browser#loadWebResponse(WebRequest)
+     */
+    public WebResponse loadWebResponse(URL url) throws IOException {
+        return loadWebResponse(new WebRequest(url));
+    }
+
     /**
      * Echo's the content of the current page to stdout. All empty lines will be
      * removed and separator containing of dashed will be inserted before and
@@ -243,4 +402,39 @@ public class Browser {
         }
     }
 
+    /**
+     * Adds the traffic since the last call to the totals and returns it.
+     */
+    private synchronized long[] takeTrafficStatistics() {
+        long[] traffic = allowListConnection.takeStatistics();
+        for (int i = 0; i < trafficTotals.length; i++) {
+            trafficTotals[i] += traffic[i];
+        }
+        return traffic;
+    }
+
+    /**
+     * Returns the traffic statistics of the Browser. They are only available
+     * if the Browser is lean.
+     * 
+     * @return the total number of sent requests, the number of blocked
+     *         requests, and the number of received bytes, or null if the
+     *         Browser is not lean.
+     */
+    public synchronized long[] getTrafficStatistics() {
+        if (allowListConnection == null) {
+            return null;
+        }
+        takeTrafficStatistics();
+        return trafficTotals.clone();
+    }
+
+    /**
+     * Closes all windows of the Browser and releases its resources.
+     */
+    @Override
+    public void close() {
+        webclient.close();
+    }
+
 }
@@ -0,0 +1,192 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces files atomically and makes them durable in batches. Every file is
+ * written to a temporary file next to its target first, which only replaces
+ * the target with an atomic move once it is on disk, so the target is never
+ * missing or only partly written, not even after a crash.
+ *
+ * The files aren't synced one by one. Instead, {@link CacheWriter#sync()}
+ * syncs all temporary files that have been written since the last call in a
+ * single barrier, then moves them over their targets and finally syncs their
+ * directories, so that a run that writes hundreds of months only has to wait
+ * for the disk once. Until then, the written data can be found with
+ * {@link CacheWriter#resolve(Path)}. Whatever refers to the written files,
+ * like a manifest, should only be written after that barrier.
+ *
+ * The time spent on writing and syncing is measured, see
+ * {@link CacheWriter#getWrittenFiles()}, {@link CacheWriter#getWriteMillis()},
+ * {@link CacheWriter#getAverageWriteMillis()} and
+ * {@link CacheWriter#getSyncMillis()}.
+ */
+public class CacheWriter {
+
+    private final Map<Path, Path> pendingMoves = new LinkedHashMap<Path, Path>();
+    private final Set<Path> pendingFiles = new LinkedHashSet<Path>();
+    private final Set<Path> pendingDirectories = new LinkedHashSet<Path>();
+
+    private int writtenFiles = 0;
+    private long writeNanos = 0;
+    private long syncNanos = 0;
+
+    /**
+     * Writes the data to a temporary file that is moved over the target by the
+     * next barrier.
+     *
+     * @param target
+     *            the target file. If it already exists, it will be replaced.
+     * @param data
+     *            the raw data
+     */
+    public void write(Path target, byte[] data) throws IOException {
+        final long start = System.nanoTime();
+        final Path partFile = target.resolveSibling(target.getFileName() + ".part");
+        Files.write(partFile, data);
+        written(partFile, target, start);
+    }
+
+    /**
+     * Moves an already written temporary file over the target with the next
+     * barrier.
+     *
+     * @param partFile
+     *            the temporary file
+     * @param target
+     *            the target file. If it already exists, it will be replaced.
+     */
+    public void commit(Path partFile, Path target) throws IOException {
+        written(partFile, target, System.nanoTime());
+    }
+
+    /**
+     * Remembers a file that has been written in place, e.g. by appending, so
+     * that it is synced by the next barrier.
+     *
+     * @param file
+     *            the written file
+     */
+    public synchronized void register(Path file) {
+        pendingFiles.add(file.toAbsolutePath());
+        pendingDirectories.add(file.toAbsolutePath().getParent());
+    }
+
+    private synchronized void written(Path partFile, Path target, long start) {
+        writtenFiles++;
+        writeNanos += System.nanoTime() - start;
+        pendingMoves.put(target.toAbsolutePath(), partFile.toAbsolutePath());
+    }
+
+    /**
+     * @param target
+     *            a target file
+     * @return the temporary file that will be moved over the target by the
+     *         next barrier, or the target itself if there is none
+     */
+    public synchronized Path resolve(Path target) {
+        final Path partFile = pendingMoves.get(target.toAbsolutePath());
+        return partFile == null ? target : partFile;
+    }
+
+    /**
+     * Syncs all temporary files and registered files that have been written
+     * since the last barrier, then moves the temporary files over their
+     * targets and finally syncs the directories, so that the moves are durable
+     * as well. Registered files that have been removed since are skipped.
+     */
+    public synchronized void sync() throws IOException {
+        final long start = System.nanoTime();
+        for (Path partFile : pendingMoves.values()) {
+            force(partFile);
+        }
+        for (Path file : pendingFiles) {
+            try {
+                force(file);
+            } catch (NoSuchFileException e) {
+                // Moved into the pack or the archive in the meantime
+            }
+        }
+        for (Map.Entry<Path, Path> move : pendingMoves.entrySet()) {
+            move(move.getValue(), move.getKey());
+            pendingDirectories.add(move.getKey().getParent());
+        }
+        for (Path directory : pendingDirectories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Not every platform can open (and hence sync) directories.
+            }
+        }
+        pendingMoves.clear();
+        pendingFiles.clear();
+        pendingDirectories.clear();
+        syncNanos += System.nanoTime() - start;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return the number of files that have been written or committed
+     */
+    public synchronized int getWrittenFiles() {
+        return writtenFiles;
+    }
+
+    /**
+     * @return the total time spent on writing the temporary files in
+     *         milliseconds
+     */
+    public synchronized long getWriteMillis() {
+        return writeNanos / 1000000;
+    }
+
+    /**
+     * @return the average time spent on writing a single temporary file in
+     *         milliseconds
+     */
+    public synchronized double getAverageWriteMillis() {
+        return writtenFiles == 0 ? 0 : writeNanos / 1000000.0 / writtenFiles;
+    }
+
+    /**
+     * @return the total time spent on the barriers, including the moves, in
+     *         milliseconds
+     */
+    public synchronized long getSyncMillis() {
+        return syncNanos / 1000000;
+    }
+
+    /**
+     * Moves the source over the target atomically. Falls back to a plain
+     * replacing move if the file system doesn't support atomic moves.
+     *
+     * @param source
+     *            the source file
+     * @param target
+     *            the target file
+     */
+    public static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
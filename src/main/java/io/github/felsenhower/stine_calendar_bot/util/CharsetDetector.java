@@ -4,7 +4,11 @@ import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.ByteOrderMark;
 
 /**
  * This class determines the suspected character encoding of a sequence of
@@ -18,6 +22,12 @@ import java.util.Set;
  * this). So instead, this class searches for predefined substrings inside the
  * text, which requires you to have at least some clue about what the document
  * might look like.
+ * 
+ * To keep this cheap, a byte order mark is looked at first, and the substrings
+ * are then encoded into every charset and searched for inside the raw bytes,
+ * so the text only has to be decoded once with the winning charset. Only a
+ * window at the beginning and one at the end of the text are probed, so the
+ * hints have to lie inside of them (which they do for ICS data).
  */
 public final class CharsetDetector {
 
@@ -61,6 +71,27 @@ public final class CharsetDetector {
     };
     // @formatter:on
 
+    /**
+     * The number of bytes at the beginning and at the end of the text that are
+     * probed for the hints.
+     */
+    private static final int PROBE_WINDOW = 4096;
+
+    /**
+     * The byte order marks that are checked before anything else. UTF-32LE has
+     * to come before UTF-16LE, because it starts with the same bytes.
+     */
+    private static final ByteOrderMark[] BYTE_ORDER_MARKS = new ByteOrderMark[] { ByteOrderMark.UTF_8,
+            ByteOrderMark.UTF_32BE, ByteOrderMark.UTF_32LE, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_16LE };
+
+    /**
+     * The encoded hints of all charsets that have been checked so far. They
+     * are shared between all instances, because a new detector is usually
+     * created for every calendar.
+     */
+    private static final Map<Charset, Map<String, EncodedHint>> encodedHints = //
+            new ConcurrentHashMap<Charset, Map<String, EncodedHint>>();
+
     /**
      * This linked (ordered) unmodifiable HashSet contains all supported
      * charsets in order in which they would be checked: First the default
@@ -125,6 +156,11 @@ public final class CharsetDetector {
      * know a little bit how your String should look like. If no Charsets apply,
      * [null,null] will be returned.
      * 
+     * A byte order mark decides the charset right away if the hints can be
+     * found behind it. Otherwise, the hints are encoded into every charset and
+     * searched for in the raw bytes, so only the winning charset has to decode
+     * the whole text.
+     * 
      * @param text
      *            the text to search in
      * @param hints
@@ -132,18 +168,109 @@ public final class CharsetDetector {
      * @return the suspected Charset and rightfully encoded String
      */
     public Pair<Charset, String> testCharsets(byte[] text, String... hints) {
-        for (Charset charset : this.getCharsets()) {
-            String probe = new String(text, charset);
-            for (String hint : hints) {
-                if (!probe.contains(hint)) {
-                    break;
+        for (ByteOrderMark bom : BYTE_ORDER_MARKS) {
+            if (startsWith(text, bom.getBytes()) && Charset.isSupported(bom.getCharsetName())) {
+                final Charset charset = Charset.forName(bom.getCharsetName());
+                final int offset = bom.length();
+                if (containsAll(text, offset, charset, hints)) {
+                    return new Pair<Charset, String>(charset, new String(text, offset, text.length - offset, charset));
                 }
-                return new Pair<Charset, String>(charset, probe);
+                break;
+            }
+        }
+        for (Charset charset : this.getCharsets()) {
+            if (containsAll(text, 0, charset, hints)) {
+                return new Pair<Charset, String>(charset, new String(text, charset));
             }
         }
         return new Pair<Charset, String>();
     }
 
+    /**
+     * Checks whether all hints are contained in the probe windows of the text
+     * (starting at the given offset) if it is encoded with the given charset.
+     * If a hint can't be searched for as bytes, the windows will be decoded
+     * after all.
+     */
+    private static boolean containsAll(byte[] text, int offset, Charset charset, String[] hints) {
+        final int[][] windows = getProbeWindows(text.length, offset);
+        for (String hint : hints) {
+            final EncodedHint encodedHint = getEncodedHint(charset, hint);
+            if (encodedHint == null) {
+                final String[] probes = Arrays.stream(windows)
+                        .map(window -> new String(text, window[0], window[1] - window[0], charset))
+                        .toArray(String[]::new);
+                return Arrays.stream(hints)
+                        .allMatch(h -> Arrays.stream(probes).anyMatch(probe -> probe.contains(h)));
+            }
+            if (Arrays.stream(windows).noneMatch(window -> encodedHint.isContainedIn(text, window[0], window[1]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines the parts of the text that are probed: The whole text if it
+     * is short, or a window at the beginning and one at the end otherwise. The
+     * second window starts at a multiple of four bytes after the offset, so
+     * multi-byte charsets stay aligned.
+     * 
+     * @return the start (inclusive) and end (exclusive) of every window
+     */
+    private static int[][] getProbeWindows(int length, int offset) {
+        if (length - offset <= 2 * PROBE_WINDOW) {
+            return new int[][] { { offset, length } };
+        }
+        final int suffixStart = length - PROBE_WINDOW - (length - PROBE_WINDOW - offset) % 4;
+        return new int[][] { { offset, offset + PROBE_WINDOW }, { suffixStart, length } };
+    }
+
+    /**
+     * Encodes the hint into the given charset.
+     * 
+     * @return the encoded hint, or null if the charset can't encode it, or if
+     *         its encoding depends on the context (e.g. because the charset
+     *         adds a byte order mark or switches states)
+     */
+    private static EncodedHint getEncodedHint(Charset charset, String hint) {
+        final EncodedHint encodedHint = encodedHints
+                .computeIfAbsent(charset, c -> new ConcurrentHashMap<String, EncodedHint>())
+                .computeIfAbsent(hint, h -> {
+                    try {
+                        if (h.isEmpty() || !charset.canEncode() || !charset.newEncoder().canEncode(h)) {
+                            return EncodedHint.NONE;
+                        }
+                        final byte[] once = h.getBytes(charset);
+                        final byte[] twice = (h + h).getBytes(charset);
+                        if (twice.length != 2 * once.length || !startsWith(twice, once)
+                                || !Arrays.equals(once, Arrays.copyOfRange(twice, once.length, twice.length))) {
+                            return EncodedHint.NONE;
+                        }
+                        return new EncodedHint(once, once.length % h.length() == 0 ? once.length / h.length() : 1);
+                    } catch (RuntimeException e) {
+                        // Some exotic charsets fail to encode anything
+                        return EncodedHint.NONE;
+                    }
+                });
+        return encodedHint == EncodedHint.NONE ? null : encodedHint;
+    }
+
+    /**
+     * @return whether the text starts with the given prefix
+     */
+    private static boolean startsWith(byte[] text, byte[] prefix) {
+        if (text.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (text[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the suspected encoding of the text. If you also need the
      * rightfully encoded String, do NOT use
@@ -183,4 +310,45 @@ public final class CharsetDetector {
     public Set<Charset> getCharsets() {
         return this.charsets;
     }
+
+    /**
+     * A hint in its encoded form.
+     */
+    private static class EncodedHint {
+
+        /**
+         * Marks hints that can't be searched for as bytes.
+         */
+        private static final EncodedHint NONE = new EncodedHint(new byte[0], 1);
+
+        private final byte[] bytes;
+
+        /**
+         * The number of bytes per char. Matches have to start at a multiple
+         * of it, so e.g. UTF-16 text isn't matched in between two chars.
+         */
+        private final int unit;
+
+        private EncodedHint(byte[] bytes, int unit) {
+            this.bytes = bytes;
+            this.unit = unit;
+        }
+
+        /**
+         * @return whether the encoded hint is contained in the given part of
+         *         the text
+         */
+        private boolean isContainedIn(byte[] text, int from, int to) {
+            final int last = to - bytes.length;
+            outer: for (int i = from; i <= last; i += unit) {
+                for (int j = 0; j < bytes.length; j++) {
+                    if (text[i + j] != bytes[j]) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
 }
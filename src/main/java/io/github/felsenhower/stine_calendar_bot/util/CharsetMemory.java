@@ -0,0 +1,99 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Remembers which charset has worked for which source (e.g. the STiNE export
+ * or a certain cache file), so the {@link CharsetDetector} of the next run can
+ * try that one first. The memory is kept in a properties file.
+ */
+public class CharsetMemory {
+
+    private final Path file;
+    private final Properties charsets = new Properties();
+
+    /**
+     * Creates a new CharsetMemory and reads the given file if it exists.
+     *
+     * @param file
+     *            the file the memory is kept in
+     */
+    public CharsetMemory(Path file) throws IOException {
+        this.file = file;
+        if (Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                charsets.load(reader);
+            }
+        }
+    }
+
+    /**
+     * @param source
+     *            the name of the source
+     * @return the charset that has worked for the source the last time, or
+     *         null if there is none (or it isn't supported anymore)
+     */
+    public Charset get(String source) {
+        final String name = charsets.getProperty(source);
+        return name != null && Charset.isSupported(name) ? Charset.forName(name) : null;
+    }
+
+    /**
+     * Remembers the charset that has worked for the given source.
+     *
+     * @param source
+     *            the name of the source
+     * @param charset
+     *            the charset, may be null if none has worked
+     */
+    public void put(String source, Charset charset) {
+        if (charset != null) {
+            charsets.setProperty(source, charset.name());
+        }
+    }
+
+    /**
+     * Creates a {@link CharsetDetector} that tries the remembered charset of
+     * the source first, and then the given ones.
+     *
+     * @param source
+     *            the name of the source
+     * @param defaultCharsets
+     *            the charsets that shall be tried next
+     */
+    public CharsetDetector createDetector(String source, Charset... defaultCharsets) {
+        final Set<Charset> priorityCharsets = new LinkedHashSet<Charset>();
+        final Charset remembered = get(source);
+        if (remembered != null) {
+            priorityCharsets.add(remembered);
+        }
+        priorityCharsets.addAll(Arrays.asList(defaultCharsets));
+        return new CharsetDetector(priorityCharsets.toArray(new Charset[0]));
+    }
+
+    /**
+     * Writes the memory to a temporary file, which replaces the memory file
+     * with the next barrier of the given {@link CacheWriter}.
+     *
+     * @param writer
+     *            the {@link CacheWriter}
+     */
+    public void save(CacheWriter writer) throws IOException {
+        final Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        try (Writer out = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+            charsets.store(out, null);
+        }
+        writer.commit(partFile, file);
+    }
+
+}
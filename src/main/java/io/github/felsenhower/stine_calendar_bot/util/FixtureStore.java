@@ -0,0 +1,265 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Stores recorded HTTP exchanges as fixture files inside a directory, so they
+ * can be replayed by the {@link ReplayServer} later on.
+ *
+ * Every exchange consists of a properties file with the request line, the
+ * form parameters, the status and the response headers, and a file with the
+ * raw response body. Both are named after the running number of the exchange,
+ * e.g. 00042.properties and 00042.body. Parameter values that equal one of the
+ * given secrets (i.e. the password) are never written to disk.
+ */
+public class FixtureStore {
+
+    private static final String REDACTED = "********";
+
+    private final Path directory;
+    private final Set<String> secrets;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Creates a new FixtureStore and its directory if necessary. Fixtures that
+     * are already inside the directory are kept, new ones are appended.
+     *
+     * @param directory
+     *            the fixture directory
+     * @param secrets
+     *            the parameter values that shall be redacted
+     */
+    public FixtureStore(Path directory, Collection<String> secrets) throws IOException {
+        this.directory = directory;
+        this.secrets = new HashSet<String>(secrets);
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Records the given exchange. This may be called from several threads at
+     * once.
+     *
+     * @param request
+     *            the sent request
+     * @param response
+     *            the received response
+     */
+    public void record(WebRequest request, WebResponse response) throws IOException {
+        final Properties fixture = new Properties();
+        fixture.setProperty("Method", request.getHttpMethod().name());
+        fixture.setProperty("Url", request.getUrl().toExternalForm());
+        fixture.setProperty("RequestBody", toCanonicalForm(getRequestParameters(request)));
+        fixture.setProperty("Status", Integer.toString(response.getStatusCode()));
+        fixture.setProperty("StatusMessage", response.getStatusMessage() == null ? "" : response.getStatusMessage());
+        final List<NameValuePair> headers = response.getResponseHeaders();
+        for (int i = 0; i < headers.size(); i++) {
+            fixture.setProperty("Header." + i, headers.get(i).getName() + ": " + headers.get(i).getValue());
+        }
+
+        final Path propertiesFile = reserveFile();
+        final String name = FilenameUtils.removeExtension(propertiesFile.getFileName().toString());
+        try (InputStream body = response.getContentAsStream()) {
+            Files.write(directory.resolve(name + ".body"), IOUtils.toByteArray(body));
+        }
+        try (Writer writer = Files.newBufferedWriter(propertiesFile, StandardCharsets.UTF_8)) {
+            fixture.store(writer, null);
+        }
+    }
+
+    /**
+     * Creates the properties file for the next exchange. Several stores may
+     * record into the same directory, so the first free number is taken.
+     */
+    private Path reserveFile() throws IOException {
+        while (true) {
+            final Path file = directory.resolve(String.format("%05d.properties", counter.getAndIncrement()));
+            try {
+                return Files.createFile(file);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Acquires the form parameters of the request, either from the parameter
+     * list or from the (url-encoded) request body. Secrets will be redacted.
+     */
+    private List<NameValuePair> getRequestParameters(WebRequest request) throws UnsupportedEncodingException {
+        final List<NameValuePair> parameters = request.getRequestParameters().isEmpty()
+                ? parseForm(request.getRequestBody())
+                : request.getRequestParameters();
+        return parameters.stream()
+                .map(p -> secrets.contains(p.getValue()) ? new NameValuePair(p.getName(), REDACTED) : p)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Loads all recorded exchanges in the order they were recorded.
+     *
+     * @return the exchanges
+     */
+    public List<Exchange> load() throws IOException {
+        final TreeSet<Path> files = new TreeSet<Path>(Comparator.comparing(Path::toString));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.properties")) {
+            stream.forEach(files::add);
+        }
+        final List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (Path file : files) {
+            final Properties fixture = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                fixture.load(reader);
+            }
+            final String name = FilenameUtils.removeExtension(file.getFileName().toString());
+            exchanges.add(new Exchange(fixture, Files.readAllBytes(directory.resolve(name + ".body"))));
+        }
+        return exchanges;
+    }
+
+    /**
+     * Parses an url-encoded form body.
+     *
+     * @param body
+     *            the body, may be null
+     * @return the form parameters
+     */
+    public static List<NameValuePair> parseForm(String body) throws UnsupportedEncodingException {
+        final List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        if (body == null || body.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : body.split("&")) {
+            final int separator = pair.indexOf('=');
+            final String name = separator < 0 ? pair : pair.substring(0, separator);
+            final String value = separator < 0 ? "" : pair.substring(separator + 1);
+            parameters.add(new NameValuePair(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8")));
+        }
+        return parameters;
+    }
+
+    /**
+     * Converts the form parameters into an url-encoded String that doesn't
+     * depend on their order, so requests can be compared with each other.
+     *
+     * @param parameters
+     *            the form parameters
+     * @return the sorted and url-encoded parameters
+     */
+    public static String toCanonicalForm(List<NameValuePair> parameters) throws UnsupportedEncodingException {
+        final List<String> pairs = new ArrayList<String>();
+        for (NameValuePair parameter : parameters) {
+            pairs.add(URLEncoder.encode(parameter.getName(), "UTF-8") + "="
+                    + URLEncoder.encode(parameter.getValue() == null ? "" : parameter.getValue(), "UTF-8"));
+        }
+        pairs.sort(null);
+        return String.join("&", pairs);
+    }
+
+    /**
+     * One recorded HTTP exchange.
+     */
+    public static class Exchange {
+
+        private final String method;
+        private final URL url;
+        private final String requestBody;
+        private final int status;
+        private final String statusMessage;
+        private final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        private final byte[] body;
+
+        private Exchange(Properties fixture, byte[] body) throws IOException {
+            this.method = fixture.getProperty("Method");
+            this.url = new URL(fixture.getProperty("Url"));
+            this.requestBody = fixture.getProperty("RequestBody", "");
+            this.status = Integer.parseInt(fixture.getProperty("Status"));
+            this.statusMessage = fixture.getProperty("StatusMessage", "");
+            for (int i = 0; fixture.containsKey("Header." + i); i++) {
+                final String header = fixture.getProperty("Header." + i);
+                final int separator = header.indexOf(": ");
+                headers.add(new NameValuePair(header.substring(0, separator), header.substring(separator + 2)));
+            }
+            this.body = body;
+        }
+
+        /**
+         * @return the HTTP method of the request, e.g. GET
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the URL of the request
+         */
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the form parameters of the request in canonical form
+         * @see FixtureStore#toCanonicalForm(List)
+         */
+        public String getRequestBody() {
+            return requestBody;
+        }
+
+        /**
+         * @return the status code of the response
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the status message of the response
+         */
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+
+        /**
+         * @return the headers of the response
+         */
+        public List<NameValuePair> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the raw body of the response
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+}
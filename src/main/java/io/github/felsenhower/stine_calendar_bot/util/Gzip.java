@@ -0,0 +1,61 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compresses data with GZIP and decompresses it again. Compressed data is
+ * recognised by the GZIP magic number, so plain and compressed data can be
+ * mixed freely.
+ */
+public final class Gzip {
+
+    private Gzip() {
+    }
+
+    /**
+     * @return whether the given data starts with the GZIP magic number
+     */
+    public static boolean isCompressed(byte[] data) {
+        return data.length >= 2 && (data[0] & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && (data[1] & 0xff) == (GZIPInputStream.GZIP_MAGIC >>> 8);
+    }
+
+    /**
+     * Compresses the given data.
+     *
+     * @param data
+     *            the plain data
+     * @return the compressed data
+     */
+    public static byte[] compress(byte[] data) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(result)) {
+            out.write(data);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Decompresses the given data if it is compressed.
+     *
+     * @param data
+     *            the compressed or plain data
+     * @return the plain data
+     */
+    public static byte[] decompress(byte[] data) throws IOException {
+        if (!isCompressed(data)) {
+            return data;
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+}
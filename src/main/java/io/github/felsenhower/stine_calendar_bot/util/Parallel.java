@@ -0,0 +1,71 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a stage of the calendar pipeline for many items at once on a
+ * {@link ForkJoinPool}, while keeping the results in the order of the items.
+ */
+public final class Parallel {
+
+    private Parallel() {
+    }
+
+    /**
+     * A stage of the pipeline that may fail with an {@link IOException}.
+     */
+    @FunctionalInterface
+    public interface Stage<T, R> {
+        R apply(T item) throws IOException;
+    }
+
+    /**
+     * Applies the stage to all items in parallel.
+     *
+     * @param pool
+     *            the pool to run the stage on
+     * @param items
+     *            the items, e.g. calendar names
+     * @param stage
+     *            the stage
+     * @return the results in the order of the items
+     * @throws IOException
+     *             the first IOException that the stage has thrown
+     */
+    public static <T, R> List<R> map(ForkJoinPool pool, Collection<T> items, Stage<T, R> stage)
+            throws IOException {
+        try {
+            // A parallel stream that is started inside a pool runs on that
+            // pool instead of the common one.
+            return pool.submit(() -> items.parallelStream().map(item -> {
+                try {
+                    return stage.apply(item);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A PrintStream that puts a prefix in front of every printed line, e.g. the
+ * account whose pipeline has printed it. The prefix is set per thread and is
+ * inherited by all threads that are started from there, so the messages of
+ * the sessions and worker pools of an account get the same prefix.
+ */
+public class PrefixingPrintStream extends PrintStream {
+
+    private static final InheritableThreadLocal<String> prefix = new InheritableThreadLocal<String>();
+
+    /**
+     * Creates a new PrefixingPrintStream
+     *
+     * @param out
+     *            the stream to print to, e.g. System.err
+     */
+    public PrefixingPrintStream(OutputStream out) {
+        super(out, true);
+    }
+
+    /**
+     * @param value
+     *            the prefix for the current thread and all threads that will
+     *            be started from it, or null for none
+     */
+    public static void setPrefix(String value) {
+        if (value == null) {
+            prefix.remove();
+        } else {
+            prefix.set(value);
+        }
+    }
+
+    @Override
+    public void println(String x) {
+        final String value = prefix.get();
+        super.println(value == null ? x : "[" + value + "] " + x);
+    }
+
+    @Override
+    public void println(Object x) {
+        println(String.valueOf(x));
+    }
+
+}
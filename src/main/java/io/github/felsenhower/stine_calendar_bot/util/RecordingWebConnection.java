@@ -0,0 +1,39 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * This WebConnection records every exchange that goes through it into a
+ * {@link FixtureStore}.
+ */
+public class RecordingWebConnection extends WebConnectionWrapper {
+
+    private final FixtureStore fixtureStore;
+
+    /**
+     * Creates a new RecordingWebConnection and installs it into the given
+     * WebClient.
+     *
+     * @param webclient
+     *            the WebClient whose connection shall be wrapped
+     * @param fixtureStore
+     *            the {@link FixtureStore} to record the exchanges in
+     */
+    public RecordingWebConnection(WebClient webclient, FixtureStore fixtureStore) {
+        super(webclient);
+        this.fixtureStore = fixtureStore;
+    }
+
+    @Override
+    public WebResponse getResponse(WebRequest request) throws IOException {
+        WebResponse response = super.getResponse(request);
+        fixtureStore.record(request, response);
+        return response;
+    }
+
+}
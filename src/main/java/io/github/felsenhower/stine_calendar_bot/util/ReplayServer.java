@@ -0,0 +1,230 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.github.felsenhower.stine_calendar_bot.util.FixtureStore.Exchange;
+
+/**
+ * A local HTTP server that stands in for STiNE by replaying the exchanges of a
+ * {@link FixtureStore}, so the whole download path can be run and measured
+ * without any network access.
+ *
+ * A request is answered with the first recorded exchange that has the same
+ * method, path, query and form parameters. If there is none, the form
+ * parameters and then the query are ignored (e.g. because the password has
+ * been redacted). If a request matches several exchanges, they are replayed in
+ * the order they were recorded, and the last one is repeated after that.
+ *
+ * All recorded origins (e.g. https://www.stine.uni-hamburg.de) are replaced by
+ * the server's own origin in redirects and text bodies, and cookies lose their
+ * Domain and Secure attributes, so the Browser stays on the server.
+ */
+public class ReplayServer implements AutoCloseable {
+
+    private static final Pattern COOKIE_ATTRIBUTES = Pattern.compile("(?i);\\s*(domain=[^;]*|secure)(?=;|$)");
+    private static final Pattern TEXT_CONTENT = Pattern.compile("(?i)^(text/|[^;]*(javascript|json|xml)).*");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StringProvider messages;
+    private final int latency;
+    private final String origin;
+    private final Set<String> recordedOrigins = new TreeSet<String>();
+    private final int exchangeCount;
+
+    private final Map<String, Replay> byParameters = new HashMap<String, Replay>();
+    private final Map<String, Replay> byQuery = new HashMap<String, Replay>();
+    private final Map<String, Replay> byPath = new HashMap<String, Replay>();
+
+    /**
+     * Loads the fixtures and starts the server on a free port of the loopback
+     * interface.
+     *
+     * @param strings
+     *            a {@link StringProvider}
+     * @param fixtureDirectory
+     *            the directory of the {@link FixtureStore}
+     * @param latency
+     *            the delay in milliseconds before every response is sent
+     */
+    public ReplayServer(StringProvider strings, Path fixtureDirectory, int latency) throws IOException {
+        this.messages = strings.from("HumanReadable.Messages");
+        this.latency = Math.max(0, latency);
+
+        final List<Exchange> exchanges = new FixtureStore(fixtureDirectory, new ArrayList<String>()).load();
+        for (Exchange exchange : exchanges) {
+            final String method = exchange.getMethod();
+            final String target = exchange.getUrl().getFile().isEmpty() ? "/" : exchange.getUrl().getFile();
+            add(byParameters, method + " " + target + " " + exchange.getRequestBody(), exchange);
+            add(byQuery, method + " " + target, exchange);
+            add(byPath, method + " " + exchange.getUrl().getPath(), exchange);
+            recordedOrigins.add(getOrigin(exchange));
+        }
+        this.exchangeCount = exchanges.size();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.origin = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static void add(Map<String, Replay> map, String key, Exchange exchange) {
+        map.computeIfAbsent(key, k -> new Replay()).exchanges.add(exchange);
+    }
+
+    /**
+     * @return the scheme, host and (non-default) port of the exchange's URL
+     */
+    private static String getOrigin(Exchange exchange) {
+        return exchange.getUrl().getProtocol() + "://" + exchange.getUrl().getAuthority();
+    }
+
+    /**
+     * Answers a single request.
+     */
+    private void handle(HttpExchange http) throws IOException {
+        try {
+            final String method = http.getRequestMethod().toUpperCase(Locale.ROOT);
+            final String target = http.getRequestURI().toString();
+            final String path = http.getRequestURI().getRawPath();
+            final String parameters;
+            try (InputStream body = http.getRequestBody()) {
+                parameters = FixtureStore.toCanonicalForm(
+                        FixtureStore.parseForm(new String(IOUtils.toByteArray(body), StandardCharsets.UTF_8)));
+            }
+
+            Replay replay = byParameters.get(method + " " + target + " " + parameters);
+            if (replay == null) {
+                replay = byQuery.get(method + " " + target);
+            }
+            if (replay == null) {
+                replay = byPath.get(method + " " + path);
+            }
+
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            if (replay == null) {
+                System.err.println(messages.get("ReplayMissing", method, target));
+                http.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            final Exchange exchange = replay.next();
+            String contentType = "";
+            for (NameValuePair header : exchange.getHeaders()) {
+                final String name = header.getName().toLowerCase(Locale.ROOT);
+                // The body is sent as a whole and already decompressed.
+                if (name.equals("content-length") || name.equals("transfer-encoding")
+                        || name.equals("content-encoding") || name.equals("connection")) {
+                    continue;
+                }
+                String value = header.getValue();
+                if (name.equals("content-type")) {
+                    contentType = value;
+                } else if (name.equals("location")) {
+                    value = rewriteOrigins(value);
+                } else if (name.equals("set-cookie")) {
+                    value = COOKIE_ATTRIBUTES.matcher(value).replaceAll("");
+                }
+                http.getResponseHeaders().add(header.getName(), value);
+            }
+
+            byte[] body = exchange.getBody();
+            // UTF-16 bodies (i.e. the calendars) don't contain any links, and
+            // would be garbled by the byte-wise replacement.
+            if (TEXT_CONTENT.matcher(contentType).matches()
+                    && !contentType.toLowerCase(Locale.ROOT).contains("utf-16")) {
+                body = rewriteOrigins(new String(body, StandardCharsets.ISO_8859_1))
+                        .getBytes(StandardCharsets.ISO_8859_1);
+            }
+
+            http.sendResponseHeaders(exchange.getStatus(), body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream out = http.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            http.close();
+        }
+    }
+
+    /**
+     * Replaces all recorded origins by the server's own one.
+     */
+    private String rewriteOrigins(String text) {
+        for (String recordedOrigin : recordedOrigins) {
+            text = text.replace(recordedOrigin, origin);
+        }
+        return text;
+    }
+
+    /**
+     * @return the URL of the server's start page
+     */
+    public String getStartpage() {
+        return origin + "/";
+    }
+
+    /**
+     * @return the number of loaded exchanges
+     */
+    public int getExchangeCount() {
+        return exchangeCount;
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The exchanges that match a request, in recording order.
+     */
+    private static class Replay {
+        private final List<Exchange> exchanges = new ArrayList<Exchange>();
+        private final AtomicInteger position = new AtomicInteger();
+
+        private Exchange next() {
+            return exchanges.get(Math.min(position.getAndIncrement(), exchanges.size() - 1));
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package io.github.felsenhower.stine_calendar_bot.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.gargoylesoftware.htmlunit.util.Cookie;
+
+/**
+ * Stores the cookies of a logged-in Browser session together with the URL of
+ * the calendar export page in an encrypted file, so a later run can go to the
+ * export page directly instead of logging in again.
+ *
+ * The file is encrypted with AES/GCM. The key is derived from the username and
+ * password, so the session can only be restored with the same credentials and
+ * any tampering with the file will be detected.
+ */
+public class SessionStore {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int KEY_ITERATIONS = 65536;
+    private static final int KEY_LENGTH = 256;
+    private static final int TAG_LENGTH = 128;
+
+    private final Path file;
+    private final char[] secret;
+
+    /**
+     * Creates a new SessionStore
+     *
+     * @param file
+     *            the file to store the session in
+     * @param username
+     *            the username for STiNE
+     * @param password
+     *            the password for STiNE
+     */
+    public SessionStore(Path file, String username, String password) {
+        this.file = file;
+        this.secret = (username + "\0" + password).toCharArray();
+    }
+
+    /**
+     * Encrypts the given session and writes it to the file. An existing file
+     * will be replaced.
+     *
+     * @param cookies
+     *            the cookies of the session
+     * @param exportPageURL
+     *            the URL of the calendar export page
+     */
+    public void save(Collection<Cookie> cookies, URL exportPageURL) throws IOException {
+        final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(plain)) {
+            out.writeUTF(exportPageURL.toExternalForm());
+            out.writeInt(cookies.size());
+            for (Cookie cookie : cookies) {
+                out.writeUTF(cookie.getDomain());
+                out.writeUTF(cookie.getName());
+                out.writeUTF(cookie.getValue());
+                out.writeUTF(cookie.getPath() == null ? "" : cookie.getPath());
+                out.writeLong(cookie.getExpires() == null ? -1 : cookie.getExpires().getTime());
+                out.writeBoolean(cookie.isSecure());
+                out.writeBoolean(cookie.isHttpOnly());
+            }
+        }
+
+        final SecureRandom random = new SecureRandom();
+        final byte[] salt = new byte[SALT_LENGTH];
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(iv);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(encrypted)) {
+            out.writeInt(FORMAT_VERSION);
+            out.write(salt);
+            out.write(iv);
+            out.write(createCipher(Cipher.ENCRYPT_MODE, salt, iv).doFinal(plain.toByteArray()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        final CacheWriter writer = new CacheWriter();
+        writer.write(file, encrypted.toByteArray());
+        writer.sync();
+    }
+
+    /**
+     * Reads and decrypts the stored session.
+     *
+     * @return the URL of the calendar export page and the cookies of the
+     *         session, or null if there is no (readable) stored session.
+     */
+    public Pair<URL, List<Cookie>> load() {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final byte[] salt = new byte[SALT_LENGTH];
+            final byte[] iv = new byte[IV_LENGTH];
+            in.readFully(salt);
+            in.readFully(iv);
+            final byte[] encrypted = new byte[in.available()];
+            in.readFully(encrypted);
+
+            final byte[] plain = createCipher(Cipher.DECRYPT_MODE, salt, iv).doFinal(encrypted);
+            try (DataInputStream session = new DataInputStream(new ByteArrayInputStream(plain))) {
+                final URL exportPageURL = new URL(session.readUTF());
+                final int count = session.readInt();
+                final List<Cookie> cookies = new LinkedList<Cookie>();
+                for (int i = 0; i < count; i++) {
+                    final String domain = session.readUTF();
+                    final String name = session.readUTF();
+                    final String value = session.readUTF();
+                    final String path = session.readUTF();
+                    final long expires = session.readLong();
+                    final boolean secure = session.readBoolean();
+                    final boolean httpOnly = session.readBoolean();
+                    cookies.add(new Cookie(domain, name, value, path.isEmpty() ? null : path,
+                            expires < 0 ? null : new Date(expires), secure, httpOnly));
+                }
+                return new Pair<URL, List<Cookie>>(exportPageURL, cookies);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            // Wrong credentials, a damaged file or a changed format: The
+            // session can't be restored, so we'll simply log in again.
+            return null;
+        }
+    }
+
+    /**
+     * Creates the AES/GCM cipher with the key derived from the credentials.
+     */
+    private Cipher createCipher(int mode, byte[] salt, byte[] iv) throws GeneralSecurityException {
+        final SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        final byte[] key = factory.generateSecret(new PBEKeySpec(secret, salt, KEY_ITERATIONS, KEY_LENGTH))
+                .getEncoded();
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH, iv));
+        return cipher;
+    }
+
+}